@@ -0,0 +1,20 @@
+package ckt;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs the benchmarks with the GC profiler, which reports the allocation rate and bytes allocated per operation. Accepts the usual JMH arguments, for
+ * example a regular expression to select benchmarks, or -p length=100 to restrict a parameter. */
+public class Benchmarks
+{
+
+	public static void main(String[] args) throws CommandLineOptionException, RunnerException
+	{
+		new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build()).run();
+	}
+
+}
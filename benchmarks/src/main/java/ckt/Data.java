@@ -0,0 +1,56 @@
+package ckt;
+
+import java.util.ArrayList;
+
+import ckt.KTParameters.Gaussian;
+
+/** Generates synthetic data for the benchmarks. Learning Sequences: the probability of a correct Problem grows along each Sequence, so that they have
+ * noise to split. Every value only depends on the seed. */
+class Data
+{
+	/** The parameters used to compute Knowledge. */
+	static final KTParameters PARAMETERS = new KTParameters(0.3, 0.1, new Gaussian(0.2, 0.05), new Gaussian(0.1, 0.05));
+
+	/** @return Metrics m0 to m(count - 1), with equal weights. */
+	static ArrayList<Metric> metrics(int count)
+	{
+		ArrayList<Metric> metrics = new ArrayList<Metric>();
+		for (int m = 0; m < count; ++m)
+		{
+			Metric metric = new Metric("m" + m, m);
+			metric.threshold = 0.5;
+			metric.weight = 1. / count;
+			metrics.add(metric);
+		}
+		return metrics;
+	}
+
+	/** @return <code>count</code> Sequences of <code>length</code> Problems, in their own store. */
+	static ArrayList<Sequence> sequences(int count, int length, int metrics, long seed)
+	{
+		RandomSource random = new RandomSource(seed);
+		ProblemStore.Builder builder = new ProblemStore.Builder(metrics);
+		double[] scores = new double[metrics];
+		ArrayList<Sequence> sequences = new ArrayList<Sequence>();
+		for (int s = 0; s < count; ++s)
+		{
+			Sequence sequence = new Sequence("s" + s);
+			for (int p = 0; p < length; ++p)
+			{
+				Problem problem = new Problem("p" + s + "_" + p, p);
+				double learned = (p + 1.) / length;
+				problem.score = Math.min(1, Math.max(0, learned + 0.3 * (random.nextDouble() - 0.5)));
+				problem.isCorrect = random.nextDouble() < learned;
+				problem.expectedKnowledge = learned;
+				for (int m = 0; m < metrics; ++m)
+					scores[m] = Math.min(1, Math.max(0, learned + 0.4 * (random.nextDouble() - 0.5)));
+				problem.ordinal = builder.add(scores);
+				sequence.problems.add(problem);
+			}
+			sequences.add(sequence);
+		}
+		builder.build(sequences);
+		return sequences;
+	}
+
+}
@@ -0,0 +1,96 @@
+package ckt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks reading an input file of {@link InputBenchmark#SEQUENCES} Sequences of {@link InputBenchmark#length} Problems with
+ * {@link InputBenchmark#metrics} metrics, on {@link Main#pool}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InputBenchmark
+{
+	/** The number of Sequences in the input file. */
+	private static final int SEQUENCES = 200;
+
+	/** The input file. */
+	private File input;
+	/** The number of Problems of each Sequence. */
+	@Param(
+	{ "10", "100", "1000" })
+	public int length;
+	/** The number of metrics. */
+	@Param(
+	{ "1", "4", "16" })
+	public int metrics;
+	/** The Sequences read. */
+	private ArrayList<Sequence> sequences;
+
+	@Benchmark
+	public ArrayList<Sequence> createSequences()
+	{
+		Main.createSequences(this.sequences, this.input);
+		return this.sequences;
+	}
+
+	@Setup
+	public void setup() throws IOException
+	{
+		Main.metrics = Data.metrics(this.metrics);
+		Main.pool = new ForkJoinPool();
+		this.sequences = new ArrayList<Sequence>();
+
+		ArrayList<Sequence> data = Data.sequences(SEQUENCES, this.length, this.metrics, 42);
+		this.input = File.createTempFile("ckt-benchmark", ".csv");
+		this.input.deleteOnExit();
+		CSVWriter writer = new CSVWriter(this.input);
+		writer.print("sequence");
+		writer.print("problem");
+		writer.print("order");
+		writer.print("expected_knowledge");
+		writer.print("score");
+		for (Metric metric : Main.metrics)
+			writer.print(metric.name);
+		writer.println();
+		for (Sequence sequence : data)
+			for (Problem problem : sequence.problems)
+			{
+				writer.print(sequence.name);
+				writer.print(problem.name);
+				writer.print(problem.index);
+				writer.print(problem.expectedKnowledge);
+				writer.print(problem.score);
+				for (Metric metric : Main.metrics)
+					writer.print(sequence.store.scores[metric.index][problem.ordinal]);
+				writer.println();
+			}
+		writer.close();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		Main.pool.shutdown();
+		this.input.delete();
+	}
+
+}
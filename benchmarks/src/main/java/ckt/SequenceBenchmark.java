@@ -0,0 +1,118 @@
+package ckt;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Benchmarks the steps applied to each Sequence, on a single Sequence of {@link SequenceBenchmark#length} Problems with
+ * {@link SequenceBenchmark#metrics} metrics. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequenceBenchmark
+{
+	/** Receives the values for {@link SequenceBenchmark#aggregate()}. */
+	private double[] aggregated;
+	/** Receives the draws for {@link SequenceBenchmark#aggregate()}, and are the values of {@link SequenceBenchmark#makeGaussian()}. */
+	private double[][] draws;
+	/** The number of Problems of the Sequence. */
+	@Param(
+	{ "10", "100", "1000" })
+	public int length;
+	/** The number of metrics. */
+	@Param(
+	{ "1", "4", "16" })
+	public int metrics;
+	/** Draws the values for {@link SequenceBenchmark#aggregate()}. */
+	private RandomSource random;
+	/** Receives the result of {@link SequenceBenchmark#makeGaussian()}. */
+	private double[] result;
+	/** The Sequence. */
+	private Sequence sequence;
+	/** A view of the Sequence, with its correctness. */
+	private Sequence view;
+
+	@Setup
+	public void setup()
+	{
+		this.sequence = Data.sequences(1, this.length, this.metrics, 42).get(0);
+		this.view = this.sequence.view(null);
+		this.draws = new double[this.metrics][Sequence.DRAWS];
+		this.aggregated = new double[Sequence.DRAWS];
+		this.result = new double[2];
+		this.random = new RandomSource(42);
+		for (double[] values : this.draws)
+			for (int d = 0; d < values.length; ++d)
+				values[d] = this.random.nextDouble();
+
+		// Main.aggregateProblem uses the global metrics and aggregation
+		Main.metrics = Data.metrics(this.metrics);
+		Main.aggregation = new AggregationFunction.Weighted(0, Main.metrics);
+		this.sequence.computeKnowledge(Data.PARAMETERS, null, 42);
+		for (Metric metric : Main.metrics)
+			this.sequence.computeKnowledge(Data.PARAMETERS, metric, 42);
+	}
+
+	/** Aggregates the metric Knowledge of every Problem, as the inner loop of Main#aggregateMetrics(). */
+	@Benchmark
+	public void aggregate()
+	{
+		for (Problem problem : this.sequence.problems)
+			Main.aggregateProblem(problem, this.sequence.store, true, this.draws, this.aggregated, this.random);
+	}
+
+	@Benchmark
+	public void computeKnowledge()
+	{
+		this.sequence.computeKnowledge(Data.PARAMETERS, null, 42);
+	}
+
+	/** Computes the Knowledge of the first metric. Writes to the store instead of the Problems. */
+	@Benchmark
+	public void computeMetricKnowledge()
+	{
+		this.sequence.computeKnowledge(Data.PARAMETERS, Main.metrics.get(0), 42);
+	}
+
+	@Benchmark
+	public ArrayList<Sequence> doSplit()
+	{
+		ExplorationSplitter splitter = new ExplorationSplitter(this.sequence, 3);
+		splitter.doSplit();
+		return splitter.split;
+	}
+
+	@Benchmark
+	public double[] findKnowledgeSequence()
+	{
+		this.view.findKnowledgeSequence();
+		return this.view.knowledgeSequence;
+	}
+
+	/** Estimates the Gaussian of each metric's draws, as done for every Problem. */
+	@Benchmark
+	public void makeGaussian(Blackhole blackhole)
+	{
+		for (double[] values : this.draws)
+		{
+			Utils.makeGaussian(values, values.length, this.result);
+			blackhole.consume(this.result[0]);
+		}
+	}
+
+}
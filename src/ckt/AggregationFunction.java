@@ -0,0 +1,408 @@
+package ckt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+/** Aggregates the scores of each metric into a single score. Functions are compiled once, then evaluated on blocks of rows: the draws of a Problem in
+ * {@link Main#aggregateMetrics()}, or all Problems of the store in {@link Main#computeScores()}. */
+public abstract class AggregationFunction
+{
+	/** A formula over the metrics, compiled to a list of instructions. Each instruction is applied to the whole block before the next one, so the formula
+	 * is only interpreted once per block.<br />
+	 * Syntax: numbers, metric names or <code>metrics[i]</code>, <code>+ - * /</code>, parentheses, and the functions <code>abs, exp, log, max, min, pow,
+	 * sqrt</code>, optionally prefixed by <code>Math.</code>. The formula can be written as a script: <code>aggregated = formula;</code>. */
+	public static class Formula extends AggregationFunction
+	{
+		/** Operations of the instructions. */
+		private static final byte CONSTANT = 0, INPUT = 1, ADD = 2, SUBTRACT = 3, MULTIPLY = 4, DIVIDE = 5, NEGATE = 6, ABS = 7, EXP = 8, LOG = 9, MAX = 10,
+				MIN = 11, POW = 12, SQRT = 13;
+		/** The names of the functions, at the index of their operation minus {@link Formula#ABS}. */
+		private static final String[] FUNCTIONS = new String[]
+		{ "abs", "exp", "log", "max", "min", "pow", "sqrt" };
+
+		/** The Metrics that can be used in the formula. */
+		private final List<Metric> metrics;
+		/** The operands of each instruction: previous instructions, the index in {@link Formula#values} for {@link Formula#CONSTANT}, or the metric index for
+		 * {@link Formula#INPUT}. */
+		private final ArrayList<int[]> operands;
+		/** The operation of each instruction. */
+		private final ArrayList<Byte> operations;
+		/** The index of the next character to parse. */
+		private int position;
+		/** The result of each instruction, row after row. One set per thread. */
+		private final ThreadLocal<double[][]> registers;
+		/** The formula being parsed. */
+		private String source;
+		/** The value of each {@link Formula#CONSTANT} instruction. */
+		private final ArrayList<Double> values;
+
+		/** @throws IllegalArgumentException If the formula can't be parsed. */
+		public Formula(String source, List<Metric> metrics)
+		{
+			this.metrics = metrics;
+			this.operands = new ArrayList<int[]>();
+			this.operations = new ArrayList<Byte>();
+			this.values = new ArrayList<Double>();
+			this.registers = new ThreadLocal<double[][]>();
+
+			source = source.trim();
+			if (source.startsWith("aggregated") && source.substring("aggregated".length()).trim().startsWith("="))
+				source = source.substring(source.indexOf('=') + 1);
+			if (source.endsWith(";")) source = source.substring(0, source.length() - 1);
+			this.source = source;
+			this.position = 0;
+			this.parseSum();
+			this.skipSpaces();
+			if (this.position != this.source.length()) throw this.error("Unexpected character");
+			this.source = null;
+		}
+
+		@Override
+		public void aggregate(double[][] inputs, int offset, int count, double[] result)
+		{
+			Telemetry.count(Telemetry.SCRIPT_EVALUATIONS, count);
+			double[][] registers = this.registers.get();
+			if (registers == null || registers[0].length < count)
+			{
+				registers = new double[this.operations.size()][count];
+				this.registers.set(registers);
+			}
+
+			for (int k = 0; k < this.operations.size(); ++k)
+			{
+				byte operation = this.operations.get(k);
+				int[] operands = this.operands.get(k);
+				double[] r = registers[k], a = operation >= ADD ? registers[operands[0]] : null, b = operands.length > 1 ? registers[operands[1]] : null;
+				switch (operation)
+				{
+					case CONSTANT:
+						Arrays.fill(r, 0, count, this.values.get(operands[0]));
+						break;
+					case INPUT:
+						System.arraycopy(inputs[operands[0]], offset, r, 0, count);
+						break;
+					case ADD:
+						for (int i = 0; i < count; ++i)
+							r[i] = a[i] + b[i];
+						break;
+					case SUBTRACT:
+						for (int i = 0; i < count; ++i)
+							r[i] = a[i] - b[i];
+						break;
+					case MULTIPLY:
+						for (int i = 0; i < count; ++i)
+							r[i] = a[i] * b[i];
+						break;
+					case DIVIDE:
+						for (int i = 0; i < count; ++i)
+							r[i] = a[i] / b[i];
+						break;
+					case NEGATE:
+						for (int i = 0; i < count; ++i)
+							r[i] = -a[i];
+						break;
+					case ABS:
+						for (int i = 0; i < count; ++i)
+							r[i] = Math.abs(a[i]);
+						break;
+					case EXP:
+						for (int i = 0; i < count; ++i)
+							r[i] = Math.exp(a[i]);
+						break;
+					case LOG:
+						for (int i = 0; i < count; ++i)
+							r[i] = Math.log(a[i]);
+						break;
+					case MAX:
+						for (int i = 0; i < count; ++i)
+							r[i] = Math.max(a[i], b[i]);
+						break;
+					case MIN:
+						for (int i = 0; i < count; ++i)
+							r[i] = Math.min(a[i], b[i]);
+						break;
+					case POW:
+						for (int i = 0; i < count; ++i)
+							r[i] = Math.pow(a[i], b[i]);
+						break;
+					case SQRT:
+						for (int i = 0; i < count; ++i)
+							r[i] = Math.sqrt(a[i]);
+						break;
+				}
+			}
+			System.arraycopy(registers[this.operations.size() - 1], 0, result, 0, count);
+		}
+
+		/** @return An exception for a parse error at the current position. */
+		private IllegalArgumentException error(String message)
+		{
+			return new IllegalArgumentException(message + " at position " + this.position + " of formula: " + this.source);
+		}
+
+		/** Adds an instruction.
+		 *
+		 * @return Its index. */
+		private int instruction(byte operation, int... operands)
+		{
+			this.operations.add(operation);
+			this.operands.add(operands);
+			return this.operations.size() - 1;
+		}
+
+		/** @return True if the current character continues a number: digit, point, exponent or sign of the exponent. */
+		private boolean isNumberPart()
+		{
+			char c = this.source.charAt(this.position);
+			if (c == '-' || c == '+') return this.source.charAt(this.position - 1) == 'e' || this.source.charAt(this.position - 1) == 'E';
+			return Character.isDigit(c) || c == '.' || c == 'e' || c == 'E';
+		}
+
+		/** Parses a number, metric, function call, parenthesized or negated expression. */
+		private int parseAtom()
+		{
+			this.skipSpaces();
+			if (this.position == this.source.length()) throw this.error("Unexpected end");
+			char c = this.source.charAt(this.position);
+
+			if (c == '-')
+			{
+				++this.position;
+				return this.instruction(NEGATE, this.parseAtom());
+			}
+			if (c == '+')
+			{
+				++this.position;
+				return this.parseAtom();
+			}
+			if (c == '(')
+			{
+				++this.position;
+				int result = this.parseSum();
+				this.expect(')');
+				return result;
+			}
+
+			if (Character.isDigit(c) || c == '.')
+			{
+				int start = this.position;
+				while (this.position < this.source.length() && this.isNumberPart())
+					++this.position;
+				try
+				{
+					this.values.add(Double.parseDouble(this.source.substring(start, this.position)));
+				} catch (NumberFormatException e)
+				{
+					throw this.error("Invalid number");
+				}
+				return this.instruction(CONSTANT, this.values.size() - 1);
+			}
+
+			if (!Character.isJavaIdentifierStart(c)) throw this.error("Unexpected character");
+			int start = this.position;
+			while (this.position < this.source.length()
+					&& (Character.isJavaIdentifierPart(this.source.charAt(this.position)) || this.source.charAt(this.position) == '.'))
+				++this.position;
+			String name = this.source.substring(start, this.position);
+			this.skipSpaces();
+
+			if (name.equals("metrics") && this.peek('['))
+			{
+				++this.position;
+				this.skipSpaces();
+				start = this.position;
+				while (this.position < this.source.length() && Character.isDigit(this.source.charAt(this.position)))
+					++this.position;
+				if (start == this.position) throw this.error("Expected metric index");
+				int index = Integer.parseInt(this.source.substring(start, this.position));
+				if (index >= this.metrics.size()) throw this.error("Unknown metric index " + index);
+				this.expect(']');
+				return this.instruction(INPUT, index);
+			}
+
+			if (this.peek('('))
+			{
+				String function = name.startsWith("Math.") ? name.substring("Math.".length()) : name;
+				for (byte f = 0; f < FUNCTIONS.length; ++f)
+					if (FUNCTIONS[f].equals(function))
+					{
+						byte operation = (byte) (ABS + f);
+						++this.position;
+						int a = this.parseSum();
+						if (operation == MAX || operation == MIN || operation == POW)
+						{
+							this.expect(',');
+							int b = this.parseSum();
+							this.expect(')');
+							return this.instruction(operation, a, b);
+						}
+						this.expect(')');
+						return this.instruction(operation, a);
+					}
+				throw this.error("Unknown function " + name);
+			}
+
+			for (Metric metric : this.metrics)
+				if (metric.name.equals(name)) return this.instruction(INPUT, metric.index);
+			throw this.error("Unknown metric " + name);
+		}
+
+		/** Parses products and divisions. */
+		private int parseProduct()
+		{
+			int result = this.parseAtom();
+			while (true)
+			{
+				this.skipSpaces();
+				if (this.peek('*'))
+				{
+					++this.position;
+					result = this.instruction(MULTIPLY, result, this.parseAtom());
+				} else if (this.peek('/'))
+				{
+					++this.position;
+					result = this.instruction(DIVIDE, result, this.parseAtom());
+				} else return result;
+			}
+		}
+
+		/** Parses sums and subtractions. */
+		private int parseSum()
+		{
+			int result = this.parseProduct();
+			while (true)
+			{
+				this.skipSpaces();
+				if (this.peek('+'))
+				{
+					++this.position;
+					result = this.instruction(ADD, result, this.parseProduct());
+				} else if (this.peek('-'))
+				{
+					++this.position;
+					result = this.instruction(SUBTRACT, result, this.parseProduct());
+				} else return result;
+			}
+		}
+
+		/** Skips spaces, then the input character. */
+		private void expect(char c)
+		{
+			this.skipSpaces();
+			if (!this.peek(c)) throw this.error("Expected '" + c + "'");
+			++this.position;
+		}
+
+		/** @return True if the next character is the input one. */
+		private boolean peek(char c)
+		{
+			return this.position < this.source.length() && this.source.charAt(this.position) == c;
+		}
+
+		private void skipSpaces()
+		{
+			while (this.position < this.source.length() && Character.isWhitespace(this.source.charAt(this.position)))
+				++this.position;
+		}
+	}
+
+	/** A script for a {@link Compilable} script engine, for scripts that aren't a {@link Formula}. It reads the <code>metrics</code> array, and sets the
+	 * <code>aggregated</code> variable. Compiled once, but evaluated row by row. */
+	public static class Script extends AggregationFunction
+	{
+		/** The compiled script. */
+		private final CompiledScript script;
+
+		public Script(CompiledScript script)
+		{
+			this.script = script;
+		}
+
+		@Override
+		public void aggregate(double[][] inputs, int offset, int count, double[] result)
+		{
+			Telemetry.count(Telemetry.SCRIPT_EVALUATIONS, count);
+			Bindings bindings = this.script.getEngine().createBindings();
+			double[] scores = new double[inputs.length];
+			for (int i = 0; i < count; ++i)
+			{
+				for (int m = 0; m < inputs.length; ++m)
+					scores[m] = inputs[m][offset + i];
+				bindings.put("metrics", scores);
+				try
+				{
+					this.script.eval(bindings);
+				} catch (ScriptException e)
+				{
+					throw new IllegalStateException(e.getMessage(), e);
+				}
+				result[i] = ((Number) bindings.get("aggregated")).doubleValue();
+			}
+		}
+	}
+
+	/** Weighted sum of the metrics: base + sum of {@link Metric#weight} * score. Weights are read at each call, so they can be set after creation. */
+	public static class Weighted extends AggregationFunction
+	{
+		/** The constant added to the sum. */
+		private final double base;
+		/** The Metrics to sum. */
+		private final List<Metric> metrics;
+
+		public Weighted(double base, List<Metric> metrics)
+		{
+			this.base = base;
+			this.metrics = metrics;
+		}
+
+		@Override
+		public void aggregate(double[][] inputs, int offset, int count, double[] result)
+		{
+			Arrays.fill(result, 0, count, this.base);
+			for (Metric metric : this.metrics)
+			{
+				double weight = metric.weight;
+				double[] scores = inputs[metric.index];
+				for (int i = 0; i < count; ++i)
+					result[i] += weight * scores[offset + i];
+			}
+		}
+	}
+
+	/** Compiles an aggregation script: as a {@link Formula} if possible, else with a {@link Compilable} script engine if there is one.
+	 *
+	 * @throws IllegalArgumentException If the script can't be compiled. */
+	public static AggregationFunction compile(String source, List<Metric> metrics)
+	{
+		try
+		{
+			return new Formula(source, metrics);
+		} catch (IllegalArgumentException e)
+		{
+			ScriptEngineManager manager = new ScriptEngineManager();
+			ScriptEngine engine = manager.getEngineByName("nashorn");
+			if (engine == null) engine = manager.getEngineByName("javascript");
+			if (!(engine instanceof Compilable)) throw e;
+			try
+			{
+				return new Script(((Compilable) engine).compile(source));
+			} catch (ScriptException e1)
+			{
+				throw new IllegalArgumentException(e1.getMessage(), e1);
+			}
+		}
+	}
+
+	/** Aggregates the rows <code>offset</code> to <code>offset + count - 1</code>: result[i] is the aggregation of inputs[m][offset + i] for each metric m.
+	 * Thread safe, except for {@link Script} as script engines may not be. */
+	public abstract void aggregate(double[][] inputs, int offset, int count, double[] result);
+
+}
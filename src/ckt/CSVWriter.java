@@ -0,0 +1,158 @@
+package ckt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/** Writes CSV files row by row, with the same output as {@link org.apache.commons.csv.CSVPrinter} with {@link org.apache.commons.csv.CSVFormat#DEFAULT}.
+ * Values are copied into a reused buffer, and doubles are formatted with {@link Utils#format(double, StringBuilder)}, so writing a row doesn't allocate
+ * anything. Not thread safe: each file has its own writer. */
+public class CSVWriter implements Closeable
+{
+	/** Size of the buffer. */
+	private static final int BUFFER = 1 << 16;
+
+	/** Chars not yet written. */
+	private final char[] buffer;
+	/** Receives formatted doubles. */
+	private final StringBuilder cell;
+	/** The number of chars in {@link CSVWriter#buffer}. */
+	private int length;
+	/** True if nothing was printed on the current row. */
+	private boolean newRecord;
+	/** The output file. */
+	private final Writer writer;
+
+	/** Creates the file, or replaces it. */
+	public CSVWriter(File file) throws IOException
+	{
+		this(new OutputStreamWriter(new FileOutputStream(file)));
+	}
+
+	/** Writes to the input writer, closed with this writer. */
+	public CSVWriter(Writer writer)
+	{
+		this.writer = writer;
+		this.buffer = new char[BUFFER];
+		this.cell = new StringBuilder();
+		this.newRecord = true;
+	}
+
+	/** Adds a char to the buffer. */
+	private void append(char c) throws IOException
+	{
+		if (this.length == this.buffer.length) this.drain();
+		this.buffer[this.length++] = c;
+	}
+
+	/** Adds chars start to end - 1 of the input value to the buffer. */
+	private void append(CharSequence value, int start, int end) throws IOException
+	{
+		while (start < end)
+		{
+			if (this.length == this.buffer.length) this.drain();
+			int count = Math.min(end - start, this.buffer.length - this.length);
+			if (value instanceof String) ((String) value).getChars(start, start + count, this.buffer, this.length);
+			else if (value instanceof StringBuilder) ((StringBuilder) value).getChars(start, start + count, this.buffer, this.length);
+			else for (int i = 0; i < count; ++i)
+				this.buffer[this.length + i] = value.charAt(start + i);
+			this.length += count;
+			start += count;
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.drain();
+		this.writer.close();
+	}
+
+	/** Writes the buffer to the file. */
+	private void drain() throws IOException
+	{
+		this.writer.write(this.buffer, 0, this.length);
+		Telemetry.count(Telemetry.BYTES_WRITTEN, this.length);
+		this.length = 0;
+	}
+
+	/** Writes everything printed so far, for streams read as they are written. */
+	public void flush() throws IOException
+	{
+		this.drain();
+		this.writer.flush();
+	}
+
+	/** Prints a double formatted with {@link Utils#format(double, StringBuilder)}. */
+	public void print(double value) throws IOException
+	{
+		this.cell.setLength(0);
+		Utils.format(value, this.cell);
+		this.print(this.cell);
+	}
+
+	/** Prints a value, quoted if needed. Same rules as the minimal quote mode of {@link org.apache.commons.csv.CSVFormat}. null is printed as an empty
+	 * value. */
+	public void print(CharSequence value) throws IOException
+	{
+		if (value == null) value = "";
+		if (!this.newRecord) this.append(',');
+
+		int size = value.length();
+		boolean quote = false;
+		if (size == 0) quote = this.newRecord;
+		else
+		{
+			char c = value.charAt(0);
+			if (this.newRecord && (c < '0' || c > '9' && c < 'A' || c > 'Z' && c < 'a' || c > 'z')) quote = true;
+			else if (c <= '#') quote = true;
+			else
+			{
+				for (int i = 0; i < size && !quote; ++i)
+				{
+					c = value.charAt(i);
+					quote = c == '\n' || c == '\r' || c == '"' || c == ',';
+				}
+				if (!quote && value.charAt(size - 1) <= ' ') quote = true;
+			}
+		}
+		this.newRecord = false;
+
+		if (!quote)
+		{
+			this.append(value, 0, size);
+			return;
+		}
+		this.append('"');
+		int start = 0;
+		for (int i = 0; i < size; ++i)
+			if (value.charAt(i) == '"')
+			{
+				// Quotes are doubled
+				this.append(value, start, i + 1);
+				start = i;
+			}
+		this.append(value, start, size);
+		this.append('"');
+	}
+
+	/** Ends the current row. */
+	public void println() throws IOException
+	{
+		this.append('\r');
+		this.append('\n');
+		this.newRecord = true;
+	}
+
+	/** Prints the input values, then ends the row. */
+	public void printRecord(String... values) throws IOException
+	{
+		for (String value : values)
+			this.print(value);
+		this.println();
+	}
+
+}
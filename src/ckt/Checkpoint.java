@@ -0,0 +1,329 @@
+package ckt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Properties;
+
+import ckt.KTParameters.Gaussian;
+
+/** Snapshots of the state of {@link Main} after its stages, so that a run can resume from the last stage whose inputs didn't change. Each stage has a key:
+ * a hash of the input file and of the settings the stage depends on, and of the key of the previous stage. The input key also covers the direction of
+ * the metric thresholds, which can come from the signs of the aggregation weights. Snapshots are binary files named after their
+ * stage and key in the checkpoints directory: magic, version, stage, key, the state, then the magic again to detect truncated files.
+ * <ul>
+ * <li>{@link Checkpoint#INPUT}: the Sequences and Problems once read, scored, thresholded and split, the metric scores and the state of the metrics.</li>
+ * <li>{@link Checkpoint#KNOWLEDGE}: the input state, then the parameters, the Knowledge of the Problems for the main pass and for each metric, the
+ * thresholds of the metrics once searched, the representative Problems and the Expected Knowledge, before aggregation.</li>
+ * </ul> */
+public class Checkpoint
+{
+	public static final byte NONE = -1, INPUT = 0, KNOWLEDGE = 1;
+	/** "CKTC" */
+	private static final int MAGIC = 0x434B5443;
+	/** The settings each stage depends on, in addition to those of the previous stages. */
+	private static final String[][] SETTINGS = new String[][]
+	{
+	{ "center_metrics", "correctness", "metric_threshold", "metrics", "model", "scores", "split" },
+	{ "cross_validation", "expected_binary", "knowledge_engine", "seed", "shards", "smooth_rmse", "threshold_search" } };
+	/** The name of each stage. */
+	private static final String[] STAGES = new String[]
+	{ "input", "knowledge" };
+	/** Version of the layout. */
+	private static final int VERSION = 4;
+
+	/** @return The input hash, combined with the content of the input file. */
+	private static long hash(long hash, File file) throws IOException
+	{
+		byte[] buffer = new byte[1 << 16];
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				for (int i = 0; i < read; ++i)
+				{
+					hash ^= buffer[i] & 0xff;
+					hash *= 0x100000001b3L;
+				}
+		} finally
+		{
+			in.close();
+		}
+		return hash;
+	}
+
+	/** @return The input hash, combined with the input setting. If the setting names a file, its content is used too. */
+	private static long hash(long hash, Properties settings, String setting) throws IOException
+	{
+		String value = settings.getProperty(setting);
+		hash = RandomSource.derive(hash, RandomSource.hash(setting + "=" + value));
+		if (value != null && new File(value).isFile()) hash = hash(hash, new File(value));
+		return hash;
+	}
+
+	/** The directory of the snapshots. */
+	public final File directory;
+	/** The Expected Knowledge of each Problem by ordinal, restored from a {@link Checkpoint#KNOWLEDGE} snapshot. null else. */
+	double[] expectedKnowledge;
+	/** The key of each stage. */
+	private final long[] keys;
+
+	/** Computes the key of each stage. Reads the whole input file. The metrics must be created.
+	 *
+	 * @param input - The input file. */
+	public Checkpoint(File directory, File input, Properties settings) throws IOException
+	{
+		this.directory = directory;
+		this.keys = new long[STAGES.length];
+		long key = hash(0xcbf29ce484222325L, input);
+		for (byte stage = 0; stage < STAGES.length; ++stage)
+		{
+			for (String setting : SETTINGS[stage])
+				key = hash(key, settings, setting);
+			// Scores computed from the metrics depend on the aggregation too.
+			if (stage == INPUT && settings.getProperty("scores").equals("compute"))
+			{
+				key = hash(key, settings, "aggregation_type");
+				key = hash(key, settings, "aggregation_value");
+			}
+			if (stage == INPUT) for (Metric metric : Main.metrics)
+				key = RandomSource.derive(key, metric.thresholdReversed ? 1 : 0);
+			this.keys[stage] = key;
+		}
+	}
+
+	/** @return The snapshot file of <code>stage</code>. */
+	File file(byte stage)
+	{
+		return new File(this.directory, STAGES[stage] + "-" + String.format("%016x", this.keys[stage]) + ".ckpt");
+	}
+
+	/** Reads the input state of the snapshot: Sequences, Problems, store and metrics. */
+	private void readInput(DataInputStream in) throws IOException
+	{
+		int size = in.readInt(), metrics = in.readInt();
+		if (metrics != Main.metrics.size()) throw new IOException("The snapshot has " + metrics + " metrics, not " + Main.metrics.size());
+		ProblemStore store = new ProblemStore(metrics, size);
+		for (Metric metric : Main.metrics)
+		{
+			metric.threshold = in.readDouble();
+			metric.thresholdReversed = in.readBoolean();
+			metric.initialDistribution = new Gaussian(in.readDouble(), in.readDouble());
+			for (int p = 0; p < size; ++p)
+				store.scores[metric.index][p] = in.readDouble();
+		}
+
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<Sequence> sequences = new ArrayList<Sequence>();
+		// The first Sequences split from a Sequence can share Problems, see ExplorationSplitter#init(): they are restored once.
+		Problem[] problemsByOrdinal = new Problem[size];
+		int count = in.readInt(), total = 0;
+		for (int s = 0; s < count; ++s)
+		{
+			Sequence sequence = new Sequence(in.readUTF());
+			sequence.store = store;
+			sequence.offset = in.readInt();
+			int problems = in.readInt();
+			for (int i = 0; i < problems; ++i)
+			{
+				int name = in.readInt();
+				if (name == names.size()) names.add(in.readUTF());
+				Problem problem = problemsByOrdinal[sequence.offset + i];
+				if (problem == null) problem = problemsByOrdinal[sequence.offset + i] = new Problem(names.get(name), in.readInt());
+				else in.readInt();
+				problem.ordinal = sequence.offset + i;
+				problem.score = in.readDouble();
+				problem.expectedKnowledge = in.readDouble();
+				problem.isCorrect = in.readBoolean();
+				sequence.problems.add(problem);
+			}
+			sequences.add(sequence);
+			total += problems;
+		}
+
+		Main.store = store;
+		Main.allSequences = sequences;
+		Main.totalProblems = total;
+	}
+
+	/** Reads the Knowledge state of the snapshot: thresholds, parameters, Knowledge, representative Problems and Expected Knowledge. */
+	private void readKnowledge(DataInputStream in) throws IOException
+	{
+		int slots = in.readInt();
+		Main.mainParameters = Model.readParameters(in, slots);
+		Main.expectedParameters = Model.readParameters(in, slots);
+		Main.metricParameters = new KTParameters[Main.metrics.size()][];
+		for (Metric metric : Main.metrics)
+		{
+			metric.threshold = in.readDouble();
+			Main.metricParameters[metric.index] = Model.readParameters(in, slots);
+			for (int p = 0; p < Main.store.size; ++p)
+			{
+				Main.store.knowledgeMean[metric.index][p] = in.readDouble();
+				Main.store.knowledgeVariation[metric.index][p] = in.readDouble();
+			}
+		}
+
+		for (Sequence sequence : Main.allSequences)
+			for (Problem problem : sequence.problems)
+			{
+				problem.knowledgeMean = in.readDouble();
+				problem.knowledgeVariation = in.readDouble();
+				problem.isRepresentative = in.readBoolean();
+			}
+
+		this.expectedKnowledge = new double[Main.store.size];
+		for (int p = 0; p < this.expectedKnowledge.length; ++p)
+			this.expectedKnowledge[p] = in.readDouble();
+	}
+
+	/** Restores the state of {@link Main} from the snapshot of the last stage with a valid snapshot. The metrics must be created. Invalid snapshots are
+	 * ignored.
+	 *
+	 * @return The stage restored, {@link Checkpoint#NONE} if there is no valid snapshot. */
+	public byte restore()
+	{
+		for (byte stage = (byte) (STAGES.length - 1); stage >= 0; --stage)
+		{
+			File file = this.file(stage);
+			if (!file.isFile()) continue;
+			try
+			{
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+				try
+				{
+					if (in.readInt() != MAGIC) throw new IOException("Not a snapshot file");
+					int version = in.readInt();
+					if (version != VERSION) throw new IOException("Unsupported snapshot version: " + version);
+					if (in.readByte() != stage || in.readLong() != this.keys[stage]) throw new IOException("Wrong stage or key");
+					this.readInput(in);
+					if (stage >= KNOWLEDGE) this.readKnowledge(in);
+					if (in.readInt() != MAGIC) throw new IOException("Truncated snapshot");
+				} finally
+				{
+					in.close();
+				}
+				Main.log("Resuming from " + file.getName());
+				return stage;
+			} catch (IOException e)
+			{
+				Main.log(Log.WARNING, "Ignoring snapshot " + file.getName() + ": " + e.getMessage());
+			}
+		}
+		return NONE;
+	}
+
+	/** Writes the snapshot of the input stage with the current state of {@link Main}. Written to a temporary file first, so that an interrupted run doesn't
+	 * leave an incomplete snapshot. Errors are logged: the run goes on without it.
+	 *
+	 * @param expectedKnowledge - The Expected Knowledge of each Problem by ordinal, for {@link Checkpoint#KNOWLEDGE}. Ignored for other stages. */
+	public void write(byte stage, double[] expectedKnowledge)
+	{
+		File file = this.file(stage), temporary = new File(this.directory, file.getName() + ".tmp");
+		try
+		{
+			this.directory.mkdirs();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeByte(stage);
+				out.writeLong(this.keys[stage]);
+				this.writeInput(out);
+				if (stage >= KNOWLEDGE) this.writeKnowledge(out, expectedKnowledge);
+				out.writeInt(MAGIC);
+			} finally
+			{
+				out.close();
+			}
+			if (file.exists()) file.delete();
+			if (!temporary.renameTo(file)) throw new IOException("Couldn't rename " + temporary.getName());
+			Telemetry.count(Telemetry.BYTES_WRITTEN, file.length());
+			Main.log("Saved snapshot " + file.getName());
+		} catch (IOException e)
+		{
+			temporary.delete();
+			Main.log(Log.ERROR, "Error writing snapshot " + file.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/** Writes the input state: store and metrics, then Sequences and Problems. Problem names are written once, then referred to by their rank. */
+	private void writeInput(DataOutputStream out) throws IOException
+	{
+		ProblemStore store = Main.store;
+		out.writeInt(store.size);
+		out.writeInt(Main.metrics.size());
+		for (Metric metric : Main.metrics)
+		{
+			out.writeDouble(metric.threshold);
+			out.writeBoolean(metric.thresholdReversed);
+			out.writeDouble(metric.initialDistribution.mean);
+			out.writeDouble(metric.initialDistribution.variation);
+			for (int p = 0; p < store.size; ++p)
+				out.writeDouble(store.scores[metric.index][p]);
+		}
+
+		HashMap<String, Integer> names = new HashMap<String, Integer>();
+		out.writeInt(Main.allSequences.size());
+		for (Sequence sequence : Main.allSequences)
+		{
+			out.writeUTF(sequence.name);
+			out.writeInt(sequence.offset);
+			out.writeInt(sequence.problems.size());
+			for (Problem problem : sequence.problems)
+			{
+				Integer name = names.get(problem.name);
+				if (name == null)
+				{
+					out.writeInt(names.size());
+					out.writeUTF(problem.name);
+					names.put(problem.name, names.size());
+				} else out.writeInt(name);
+				out.writeInt(problem.index);
+				out.writeDouble(problem.score);
+				out.writeDouble(problem.expectedKnowledge);
+				out.writeBoolean(problem.isCorrect);
+			}
+		}
+	}
+
+	/** Writes the Knowledge state: threshold, parameters and Knowledge of each metric, Knowledge of the Problems, then Expected Knowledge. */
+	private void writeKnowledge(DataOutputStream out, double[] expectedKnowledge) throws IOException
+	{
+		out.writeInt(Main.mainParameters.length);
+		Model.writeParameters(out, Main.mainParameters);
+		Model.writeParameters(out, Main.expectedParameters);
+		for (Metric metric : Main.metrics)
+		{
+			out.writeDouble(metric.threshold);
+			Model.writeParameters(out, Main.metricParameters[metric.index]);
+			for (int p = 0; p < Main.store.size; ++p)
+			{
+				out.writeDouble(Main.store.knowledgeMean[metric.index][p]);
+				out.writeDouble(Main.store.knowledgeVariation[metric.index][p]);
+			}
+		}
+
+		for (Sequence sequence : Main.allSequences)
+			for (Problem problem : sequence.problems)
+			{
+				out.writeDouble(problem.knowledgeMean);
+				out.writeDouble(problem.knowledgeVariation);
+				out.writeBoolean(problem.isRepresentative);
+			}
+
+		for (double knowledge : expectedKnowledge)
+			out.writeDouble(knowledge);
+	}
+
+}
@@ -1,12 +1,69 @@
 package ckt;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /** Splits an Exploration. If the Exploration contains two or more wrong-correct sequences, the Exploration will be split into multiple ones. */
 public class ExplorationSplitter
 {
+	/** Splits a range of Sequences. Splits the range in two halves containing the same number of Problems, as {@link FoldExecutor} does. */
+	private static class SplitTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		/** cumulative[i] is the number of Problems in the Sequences before i. */
+		final int[] cumulative;
+		/** Maximum length of a zone to be potentially considered as noise. */
+		final int maxNoise;
+		/** Receives the pieces of each Sequence, at its index. */
+		final Sequence[][] pieces;
+		/** The Sequences to split. */
+		final Sequence[] sequences;
+		/** Range of Sequences of this task, end excluded. */
+		final int start, end;
+
+		SplitTask(Sequence[] sequences, int[] cumulative, int start, int end, int maxNoise, Sequence[][] pieces)
+		{
+			this.sequences = sequences;
+			this.cumulative = cumulative;
+			this.start = start;
+			this.end = end;
+			this.maxNoise = maxNoise;
+			this.pieces = pieces;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (this.end - this.start <= 1 || this.cumulative[this.end] - this.cumulative[this.start] <= FoldExecutor.MIN_TASK_PROBLEMS)
+			{
+				for (int i = this.start; i < this.end; ++i)
+				{
+					ExplorationSplitter splitter = new ExplorationSplitter(this.sequences[i], this.maxNoise);
+					splitter.doSplit();
+					this.pieces[i] = splitter.split.toArray(new Sequence[splitter.split.size()]);
+				}
+				return;
+			}
+
+			int half = (this.cumulative[this.start] + this.cumulative[this.end]) / 2;
+			int middle = Arrays.binarySearch(this.cumulative, this.start, this.end, half);
+			if (middle < 0) middle = -middle - 1;
+			if (middle <= this.start) middle = this.start + 1;
+			if (middle >= this.end) middle = this.end - 1;
+
+			invokeAll(new SplitTask(this.sequences, this.cumulative, this.start, middle, this.maxNoise, this.pieces), new SplitTask(this.sequences,
+					this.cumulative, middle, this.end, this.maxNoise, this.pieces));
+		}
+	}
+
+	/** Steps of the splitting, see {@link ExplorationSplitter#merge(byte)}. */
+	private static final byte NOISE = 0, NEIGHBOURS = 1;
 
 	@Deprecated
 	public static void findArrays()
@@ -42,7 +99,7 @@ public class ExplorationSplitter
 		{
 			if (current < indexes.length && indexes[current] == i)
 			{
-				Sequence e = new Sequence(sequence.name + "-" + Integer.toString(current));
+				Sequence e = sequence.part(sequence.name + "-" + Integer.toString(current), i - problems.size());
 				e.problems.addAll(problems);
 				Main.allSequences.add(e);
 				problems.clear();
@@ -50,35 +107,43 @@ public class ExplorationSplitter
 			}
 			problems.add(sequence.problems.get(i));
 		}
-		Sequence e = new Sequence(sequence.name + "-" + Integer.toString(current));
+		Sequence e = sequence.part(sequence.name + "-" + Integer.toString(current), sequence.problems.size() - problems.size());
 		e.problems.addAll(problems);
 		Main.allSequences.add(e);
 		problems.clear();
 	}
 
-	/** Splits the sequences in {@link Main#allSequences}. */
-	public static void splitSequences(int maxNoise)
+	/** Splits the input Sequences in parallel on {@link Main#pool}.
+	 * 
+	 * @return The new Sequences: the pieces of each input Sequence, in the order of the input, then in the order of the pieces. */
+	public static ArrayList<Sequence> splitSequences(List<Sequence> sequences, int maxNoise)
 	{
-		HashSet<Sequence> split = new HashSet<Sequence>(); // To avoid ConcurrentModificationException
-		for (Sequence sequence : Main.allSequences)
-		{
-			ExplorationSplitter splitter = new ExplorationSplitter(sequence, maxNoise);
-			splitter.doSplit();
-			split.addAll(splitter.split);
-		}
+		Telemetry.Timer timer = Telemetry.start("split");
+		Sequence[] input = sequences.toArray(new Sequence[sequences.size()]);
+		int[] cumulative = new int[input.length + 1];
+		for (int i = 0; i < input.length; ++i)
+			cumulative[i + 1] = cumulative[i] + input[i].problems.size();
+		Sequence[][] pieces = new Sequence[input.length][];
+		SplitTask task = new SplitTask(input, cumulative, 0, input.length, maxNoise, pieces);
+		if (ForkJoinTask.inForkJoinPool()) task.invoke();
+		else Main.pool.invoke(task);
 
-		Main.allSequences.clear();
-		Main.allSequences.addAll(split);
-		Main.cleanSequences(false, false);
+		ArrayList<Sequence> split = new ArrayList<Sequence>(input.length);
+		for (Sequence[] piece : pieces)
+			split.addAll(Arrays.asList(piece));
+		timer.stop();
+		return split;
 	}
 
+	/** The first zone of the Sequence while splitting. The others follow it, see {@link Zone#next}. */
+	private Zone first;
 	/** Maximum length of a zone to be potentially considered as noise. */
 	public final int maxNoise;
 	/** The sequence to split. */
 	public final Sequence sequence;
 	/** The sequence after splitting. */
 	public final ArrayList<Sequence> split;
-	/** The sequence as zones. */
+	/** The sequence as zones. Only up to date before and after splitting. */
 	private final ArrayList<Zone> zones;
 
 	public ExplorationSplitter(Sequence sequence, int maxNoise)
@@ -96,7 +161,7 @@ public class ExplorationSplitter
 		for (int zone = 0; zone < this.zones.size(); ++zone)
 		{
 			++index;
-			Sequence newSequence = new Sequence(this.sequence.name + "-" + Integer.toString(index));
+			Sequence newSequence = this.sequence.part(this.sequence.name + "-" + Integer.toString(index), this.zones.get(zone).startIndex);
 			newSequence.problems.addAll(this.zones.get(zone).getProblems());
 
 			if (zone != 0 || !this.zones.get(zone).majority())
@@ -112,88 +177,88 @@ public class ExplorationSplitter
 	/** Executes the splitting. */
 	public void doSplit()
 	{
+		if (this.sequence.problems.isEmpty())
+		{
+			this.split.add(this.sequence);
+			return;
+		}
 		this.init();
-		byte split = Zone.MERGE_NEXT;
-		ArrayList<Zone> available = new ArrayList<Zone>();
 
 		// First step: Eliminate noise
-		while (split != Zone.NO_MERGE)
-		{
-			available.clear();
-			available.addAll(this.zones);
-			available.sort(new Comparator<Zone>()
-			{
-				// To select smaller zones first.
-				@Override
-				public int compare(Zone o1, Zone o2)
-				{
-					return Integer.compare(o1.size(), o2.size());
-				}
-			});
+		this.merge(NOISE);
+		// Second step: Merge zones
+		this.merge(NEIGHBOURS);
 
-			for (Zone current : available)
+		this.zones.clear();
+		for (Zone zone = this.first; zone != null; zone = zone.next)
+			this.zones.add(zone);
+		if (this.zones.size() > 2) this.createNewSequences();
+		else this.split.add(this.sequence);
+	}
+
+	/** @return True if the input zone can merge in the input step. */
+	private boolean isMergeable(Zone zone, byte step)
+	{
+		if (step == NOISE) return zone.isNoise(zone.previous, zone.next) != Zone.NO_MERGE;
+		return zone.canMerge(zone.previous, zone.next) != Zone.NO_MERGE;
+	}
+
+	/** Merges zones until none can merge: merges the first zone that can, smaller zones first, then repeats. A merge only changes the merged zone and its
+	 * neighbours, so only they are tested and ordered again, and each merge costs O(log Z).
+	 * 
+	 * @param step - {@link ExplorationSplitter#NOISE}: merges noise zones, see {@link Zone#mergeIfNoise(Zone, Zone)}.<br />
+	 *            {@link ExplorationSplitter#NEIGHBOURS}: merges zones with a neighbour, zones with a smaller extremity first among zones of the same size,
+	 *            see {@link Zone#mergeWithNeighbour(Zone, Zone)}. */
+	private void merge(final byte step)
+	{
+		// The zones that can merge, in the order they are tried. Zones that are equal so far are tried in the order of the Sequence.
+		TreeSet<Zone> mergeable = new TreeSet<Zone>(new Comparator<Zone>()
+		{
+			@Override
+			public int compare(Zone o1, Zone o2)
 			{
-				int index = this.zones.indexOf(current);
-				Zone previous = index == 0 ? null : this.zones.get(index - 1);
-				Zone next = index == this.zones.size() - 1 ? null : this.zones.get(index + 1);
-				split = current.mergeIfNoise(previous, next);
-				if (split == Zone.MERGE_PREVIOUS)
-				{
-					this.zones.remove(previous);
-					break;
-				}
-				if (split == Zone.MERGE_NEXT)
-				{
-					this.zones.remove(next);
-					break;
-				}
+				int order = Integer.compare(o1.size(), o2.size());
+				if (order == 0 && step == NEIGHBOURS) order = Integer.compare(o1.minExtremity(), o2.minExtremity());
+				return order == 0 ? Integer.compare(o1.rank, o2.rank) : order;
 			}
-		}
+		});
+		for (Zone zone = this.first; zone != null; zone = zone.next)
+			if (this.isMergeable(zone, step)) mergeable.add(zone);
 
-		split = Zone.MERGE_NEXT;
-		// Second step: Merge zones
-		while (split != Zone.NO_MERGE)
+		int merges = 0;
+		while (!mergeable.isEmpty())
 		{
-			available.clear();
-			available.addAll(this.zones);
-			available.sort(new Comparator<Zone>()
+			Zone current = mergeable.pollFirst(), previous = current.previous, next = current.next;
+			// Removed before their counts change
+			if (previous != null) mergeable.remove(previous);
+			if (next != null) mergeable.remove(next);
+
+			byte merge = step == NOISE ? current.mergeIfNoise(previous, next) : current.mergeWithNeighbour(previous, next);
+			++merges;
+			if (merge == Zone.MERGE_PREVIOUS)
 			{
-				// To select smaller zones first.
-				@Override
-				public int compare(Zone o1, Zone o2)
-				{
-					int size = Integer.compare(o1.size(), o2.size());
-					if (size == 0)
-					{
-						int min = Integer.compare(o1.minExtremity(), o2.minExtremity());
-						if (min == 0) return Integer.compare(o1.startIndex, o2.startIndex);
-						return min;
-					}
-					return size;
-				}
-			});
+				if (previous == this.first) this.first = current;
+				current.previous = previous = previous.previous;
+				if (previous != null) previous.next = current;
+			} else
+			{
+				current.next = next = next.next;
+				if (next != null) next.previous = current;
+			}
 
-			for (Zone current : available)
+			if (previous != null)
 			{
-				int index = this.zones.indexOf(current);
-				Zone previous = index == 0 ? null : this.zones.get(index - 1);
-				Zone next = index == this.zones.size() - 1 ? null : this.zones.get(index + 1);
-				split = current.mergeWithNeighbour(previous, next);
-				if (split == Zone.MERGE_PREVIOUS)
-				{
-					this.zones.remove(previous);
-					break;
-				}
-				if (split == Zone.MERGE_NEXT)
-				{
-					this.zones.remove(next);
-					break;
-				}
+				mergeable.remove(previous);
+				if (this.isMergeable(previous, step)) mergeable.add(previous);
+			}
+			if (this.isMergeable(current, step)) mergeable.add(current);
+			if (next != null)
+			{
+				mergeable.remove(next);
+				if (this.isMergeable(next, step)) mergeable.add(next);
 			}
 		}
-
-		if (this.zones.size() > 2) this.createNewSequences();
-		else this.split.add(this.sequence);
+		Telemetry.count(Telemetry.ZONE_MERGES, merges);
 	}
 
 	/** Creates the smallest zones possible. */
@@ -205,7 +270,15 @@ public class ExplorationSplitter
 			if (problem == this.sequence.problems.size() || (current == 1) != this.sequence.problems.get(problem).isCorrect)
 			{
 				current = current == 0 ? 1 : 0;
-				this.zones.add(new Zone(this.sequence, this.maxNoise, start, problem == 0 ? 0 : problem - 1));
+				Zone zone = new Zone(this.sequence, this.maxNoise, start, problem == 0 ? 0 : problem - 1);
+				zone.rank = this.zones.size();
+				if (this.zones.isEmpty()) this.first = zone;
+				else
+				{
+					zone.previous = this.zones.get(this.zones.size() - 1);
+					zone.previous.next = zone;
+				}
+				this.zones.add(zone);
 				start = problem;
 			}
 		}
@@ -0,0 +1,183 @@
+package ckt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/** Executes the steps of cross validation in parallel on {@link Main#pool}. Each step gets its own learning and testing sets, and the testing Sequences are
+ * balanced between threads by their number of Problems. */
+public class FoldExecutor
+{
+	/** A single step of cross validation. */
+	private class Fold extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		/** Index of this step. */
+		final int index;
+		/** The Metric to compute Knowledge for, null for the main Knowledge. */
+		final Metric metric;
+		/** The parameters found for each step. */
+		final KTParameters[] params;
+		/** The seed of the pass. */
+		final long seed;
+
+		Fold(int index, Metric metric, KTParameters[] params, long seed)
+		{
+			this.index = index;
+			this.metric = metric;
+			this.params = params;
+			this.seed = seed;
+		}
+
+		@Override
+		protected void compute()
+		{
+			List<Sequence> testingSet = sequences.subList(Math.min(this.index * testingSize, sequences.size()),
+					Math.min((this.index + 1) * testingSize, sequences.size()));
+			ArrayList<Sequence> learningSet = new ArrayList<Sequence>(sequences.size() - testingSet.size());
+			learningSet.addAll(sequences.subList(0, Math.min(this.index * testingSize, sequences.size())));
+			learningSet.addAll(sequences.subList(Math.min((this.index + 1) * testingSize, sequences.size()), sequences.size()));
+
+			this.params[this.index] = Main.computeParameters(learningSet, new RandomSource(RandomSource.derive(this.seed, this.index)));
+
+			// Longest Sequences first, so that they don't end up last on a single thread.
+			Sequence[] testing = testingSet.toArray(new Sequence[testingSet.size()]);
+			Arrays.sort(testing, new Comparator<Sequence>()
+			{
+				@Override
+				public int compare(Sequence o1, Sequence o2)
+				{
+					return -Integer.compare(o1.problems.size(), o2.problems.size());
+				}
+			});
+			int[] cumulative = new int[testing.length + 1];
+			for (int i = 0; i < testing.length; ++i)
+				cumulative[i + 1] = cumulative[i] + testing[i].problems.size();
+
+			new KnowledgeTask(testing, cumulative, 0, testing.length, this.params[this.index], this.metric, this.seed).invoke();
+		}
+	}
+
+	/** Computes the Knowledge of a range of Sequences. Splits the range in two halves containing the same number of Problems. */
+	private static class KnowledgeTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		/** cumulative[i] is the number of Problems in the Sequences before i. */
+		final int[] cumulative;
+		/** The Metric to compute Knowledge for, null for the main Knowledge. */
+		final Metric metric;
+		/** The parameters to use. */
+		final KTParameters parameters;
+		/** The seed of the pass. */
+		final long seed;
+		/** The Sequences to compute the Knowledge of. */
+		final Sequence[] sequences;
+		/** Range of Sequences of this task, end excluded. */
+		final int start, end;
+
+		KnowledgeTask(Sequence[] sequences, int[] cumulative, int start, int end, KTParameters parameters, Metric metric, long seed)
+		{
+			this.seed = seed;
+			this.sequences = sequences;
+			this.cumulative = cumulative;
+			this.start = start;
+			this.end = end;
+			this.parameters = parameters;
+			this.metric = metric;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (this.end - this.start <= 1 || this.cumulative[this.end] - this.cumulative[this.start] <= MIN_TASK_PROBLEMS)
+			{
+				for (int i = this.start; i < this.end; ++i)
+					this.sequences[i].computeKnowledge(this.parameters, this.metric, this.seed);
+				return;
+			}
+
+			int half = (this.cumulative[this.start] + this.cumulative[this.end]) / 2;
+			int middle = Arrays.binarySearch(this.cumulative, this.start, this.end, half);
+			if (middle < 0) middle = -middle - 1;
+			if (middle <= this.start) middle = this.start + 1;
+			if (middle >= this.end) middle = this.end - 1;
+
+			invokeAll(new KnowledgeTask(this.sequences, this.cumulative, this.start, middle, this.parameters, this.metric, this.seed), new KnowledgeTask(
+					this.sequences, this.cumulative, middle, this.end, this.parameters, this.metric, this.seed));
+		}
+	}
+
+	/** Ranges of Sequences with fewer Problems than this are not split further. */
+	static final int MIN_TASK_PROBLEMS = 1024;
+
+	/** The Sequences used for cross validation. */
+	public final List<Sequence> sequences;
+	/** The number of Sequences to use as testing set for each step. */
+	public final int testingSize;
+	/** The number of steps in cross validation. */
+	public final int validations;
+
+	public FoldExecutor(List<Sequence> sequences, int validations, int testingSize)
+	{
+		this.sequences = sequences;
+		this.validations = validations;
+		this.testingSize = testingSize;
+	}
+
+	/** Computes the Knowledge of every Sequence with the input parameters, without training. Used to score data with a {@link Model}.
+	 *
+	 * @param metric - The Metric to compute Knowledge for, null for the main Knowledge.
+	 * @param seed - The seed of the pass. */
+	public void apply(KTParameters parameters, Metric metric, long seed)
+	{
+		// Longest Sequences first, so that they don't end up last on a single thread.
+		Sequence[] sequences = this.sequences.toArray(new Sequence[this.sequences.size()]);
+		Arrays.sort(sequences, new Comparator<Sequence>()
+		{
+			@Override
+			public int compare(Sequence o1, Sequence o2)
+			{
+				return -Integer.compare(o1.problems.size(), o2.problems.size());
+			}
+		});
+		int[] cumulative = new int[sequences.length + 1];
+		for (int i = 0; i < sequences.length; ++i)
+			cumulative[i + 1] = cumulative[i] + sequences[i].problems.size();
+
+		KnowledgeTask task = new KnowledgeTask(sequences, cumulative, 0, sequences.length, parameters, metric, seed);
+		if (ForkJoinTask.inForkJoinPool()) task.invoke();
+		else Main.pool.invoke(task);
+	}
+
+	/** Executes every step of cross validation: finds the parameters with the learning set, then computes the Knowledge of the testing set.
+	 *
+	 * @param metric - The Metric to compute Knowledge for, null for the main Knowledge.
+	 * @param seed - The seed of the pass. Each step and each Sequence derive their own random source from it.
+	 * @return The parameters found for each step. Has two extra slots for {@link Main#computeStats(KTParameters[])}. */
+	public KTParameters[] execute(Metric metric, long seed)
+	{
+		KTParameters[] params = new KTParameters[this.validations + 2];
+		Fold[] folds = new Fold[this.validations];
+		for (int i = 0; i < folds.length; ++i)
+			folds[i] = new Fold(i, metric, params, seed);
+
+		if (ForkJoinTask.inForkJoinPool()) ForkJoinTask.invokeAll(folds);
+		else Main.pool.invoke(new RecursiveAction()
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute()
+			{
+				invokeAll(folds);
+			}
+		});
+		return params;
+	}
+
+}
@@ -0,0 +1,124 @@
+package ckt;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import ckt.KTParameters.Gaussian;
+
+/** The sums {@link Main#computeParameters(double, KTParameters[], RandomSource)} makes over the probabilities of a learning set, kept apart so that the
+ * statistics of parts of the learning set can be merged, see {@link ShardExecutor}. The deviations of P(G) and P(S) are found from sums of squares rather
+ * than in a second pass over the probabilities.<br />
+ * Each Sequence draws P(G) and P(S) from its own random source, see {@link FoldStatistics#add(KTParameters, RandomSource)}, so the draws don't depend on
+ * how the learning set is split. */
+public class FoldStatistics
+{
+	/** Sums of the P(G) and P(S) drawn, of their means, and of the squares of their means. */
+	double guess, guessMeans, guessSquares, slip, slipMeans, slipSquares;
+	/** The number of Sequences with a P(T), P(G) and P(S). */
+	int guesses, slips, transitions;
+	/** Sum of P(T). */
+	double transition;
+
+	/** Reads statistics written by {@link FoldStatistics#write(DataOutputStream)}. */
+	static FoldStatistics read(DataInputStream in) throws IOException
+	{
+		FoldStatistics statistics = new FoldStatistics();
+		statistics.transition = in.readDouble();
+		statistics.transitions = in.readInt();
+		statistics.guess = in.readDouble();
+		statistics.guessMeans = in.readDouble();
+		statistics.guessSquares = in.readDouble();
+		statistics.guesses = in.readInt();
+		statistics.slip = in.readDouble();
+		statistics.slipMeans = in.readDouble();
+		statistics.slipSquares = in.readDouble();
+		statistics.slips = in.readInt();
+		return statistics;
+	}
+
+	/** Adds the probabilities of a Sequence, see {@link Sequence#computeProbabilities(double)}.
+	 *
+	 * @param random - The random source of the Sequence, to draw P(G) and P(S). */
+	public void add(KTParameters probabilities, RandomSource random)
+	{
+		if (!Double.isNaN(probabilities.transition))
+		{
+			this.transition += probabilities.transition;
+			++this.transitions;
+		}
+		this.add(probabilities.guess, probabilities.slip, random, 1);
+	}
+
+	/** Adds or removes P(G) and P(S) of a Sequence, drawn as {@link FoldStatistics#add(KTParameters, RandomSource)} does.
+	 *
+	 * @param random - The random source of the Sequence. To remove them, it must be in the state it had when they were added.
+	 * @param sign - 1 to add them, -1 to remove them. */
+	void add(Gaussian guess, Gaussian slip, RandomSource random, int sign)
+	{
+		if (!Double.isNaN(guess.mean))
+		{
+			this.guess += sign * guess.next(random);
+			this.guessMeans += sign * guess.mean;
+			this.guessSquares += sign * guess.mean * guess.mean;
+			this.guesses += sign;
+		}
+		if (!Double.isNaN(slip.mean))
+		{
+			this.slip += sign * slip.next(random);
+			this.slipMeans += sign * slip.mean;
+			this.slipSquares += sign * slip.mean * slip.mean;
+			this.slips += sign;
+		}
+	}
+
+	/** Adds the input statistics to these. */
+	public void merge(FoldStatistics statistics)
+	{
+		this.transition += statistics.transition;
+		this.transitions += statistics.transitions;
+		this.guess += statistics.guess;
+		this.guessMeans += statistics.guessMeans;
+		this.guessSquares += statistics.guessSquares;
+		this.guesses += statistics.guesses;
+		this.slip += statistics.slip;
+		this.slipMeans += statistics.slipMeans;
+		this.slipSquares += statistics.slipSquares;
+		this.slips += statistics.slips;
+	}
+
+	/** @param kStart - P(L0) of the learning set.
+	 * @return The parameters of the learning set. */
+	public KTParameters parameters(double kStart)
+	{
+		double mTransition = this.transition / this.transitions, mGuess = this.guess / this.guesses, mSlip = this.slip / this.slips;
+
+		// sum((x - m)^2) = sum(x^2) - 2m sum(x) + n m^2, deviations of the means around the mean of the draws
+		double sGuess = Math.sqrt(Math.max(0, (this.guessSquares - 2 * mGuess * this.guessMeans) / this.guesses + mGuess * mGuess));
+		double sSlip = Math.sqrt(Math.max(0, (this.slipSquares - 2 * mSlip * this.slipMeans) / this.slips + mSlip * mSlip));
+
+		// Can happen if threshold is too low or too high
+		if (Double.isNaN(mGuess)) mGuess = 0;
+		if (Double.isNaN(sGuess)) sGuess = 0;
+		if (Double.isNaN(mSlip)) mSlip = 0;
+		if (Double.isNaN(sSlip)) sSlip = 0;
+
+		return new KTParameters(kStart, mTransition, new Gaussian(mGuess, sGuess), new Gaussian(mSlip, sSlip));
+	}
+
+	/** Writes these statistics, see {@link FoldStatistics#read(DataInputStream)}. */
+	void write(DataOutputStream out) throws IOException
+	{
+		out.writeDouble(this.transition);
+		out.writeInt(this.transitions);
+		out.writeDouble(this.guess);
+		out.writeDouble(this.guessMeans);
+		out.writeDouble(this.guessSquares);
+		out.writeInt(this.guesses);
+		out.writeDouble(this.slip);
+		out.writeDouble(this.slipMeans);
+		out.writeDouble(this.slipSquares);
+		out.writeInt(this.slips);
+	}
+
+}
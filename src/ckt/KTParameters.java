@@ -1,7 +1,5 @@
 package ckt;
 
-import java.util.Random;
-
 /** The set of Parameters used in Knowledge Tracing. */
 public class KTParameters
 {
@@ -30,13 +28,25 @@ public class KTParameters
 			this.variation = variation;
 		}
 
-		/** @return A random value from this Gaussian distribution. */
-		public double next()
+		/** @return A random value from the input Gaussian distribution, clamped between 0 and 1. */
+		public static double next(double mean, double variation, RandomSource random)
 		{
-			double next = random.nextGaussian() * this.variation + this.mean;
+			double next = random.nextGaussian() * variation + mean;
 			return next < 0 ? 0 : next > 1 ? 1 : next;
 		}
 
+		/** @return A random value from this Gaussian distribution. */
+		public double next(RandomSource random)
+		{
+			return next(this.mean, this.variation, random);
+		}
+
+		/** @return The input value after applying the center-reduce method, see {@link Gaussian#unreduce(double)}. */
+		public double reduce(double value)
+		{
+			return (value - this.mean) / this.variation;
+		}
+
 		@Override
 		public String toString()
 		{
@@ -53,9 +63,6 @@ public class KTParameters
 
 	}
 
-	/** Random number generator. */
-	static final Random random = new Random();
-
 	/** P(G) */
 	public final Gaussian guess;
 	/** P(S) */
@@ -0,0 +1,248 @@
+package ckt;
+
+import ckt.KTParameters.Gaussian;
+
+/** Computes the Knowledge after a Problem, from the Knowledge before it, the Problem score and the parameters. Slip, guess and previous Knowledge are
+ * Gaussians clamped between 0 and 1, see {@link Gaussian#next(RandomSource)}. */
+public abstract class KnowledgeEngine
+{
+	/** Propagates mean and variation analytically, with a first order Taylor expansion around the means. */
+	public static class Delta extends KnowledgeEngine
+	{
+		@Override
+		protected void propagate(double mean, double variation, double score, KTParameters parameters, Workspace workspace)
+		{
+			double[] k = workspace.knowledge, s = workspace.slip, g = workspace.guess;
+			clamp(mean, variation, k);
+			clamp(parameters.slip.mean, parameters.slip.variation, s);
+			clamp(parameters.guess.mean, parameters.guess.variation, g);
+
+			// Success: A / (A + B), failure: C / (C + D)
+			double a = k[0] * (1 - s[0]), b = (1 - k[0]) * g[0], c = k[0] * s[0], d = (1 - k[0]) * (1 - g[0]);
+			double success = (a + b) == 0 ? 0 : 1 / ((a + b) * (a + b)), failure = (c + d) == 0 ? 0 : 1 / ((c + d) * (c + d));
+
+			// Partial derivatives of the weighted posterior
+			double factor = 1 - parameters.transition;
+			double dk = factor * (score * (1 - s[0]) * g[0] * success + (1 - score) * s[0] * (1 - g[0]) * failure);
+			double ds = factor * (-score * k[0] * (1 - k[0]) * g[0] * success + (1 - score) * k[0] * (1 - k[0]) * (1 - g[0]) * failure);
+			double dg = factor * (-score * k[0] * (1 - s[0]) * (1 - k[0]) * success + (1 - score) * k[0] * s[0] * (1 - k[0]) * failure);
+
+			double variance = dk * dk * k[1] * k[1] + ds * ds * s[1] * s[1] + dg * dg * g[1] * g[1];
+			workspace.result[0] = update(k[0], s[0], g[0], score, parameters.transition);
+			workspace.result[1] = Math.sqrt(variance);
+		}
+	}
+
+	/** Draws {@link Sequence#DRAWS} values of slip, guess and previous Knowledge, and estimates the resulting Gaussian. */
+	public static class Sampling extends KnowledgeEngine
+	{
+		@Override
+		protected void propagate(double mean, double variation, double score, KTParameters parameters, Workspace workspace)
+		{
+			double[] draws = workspace.draws;
+			RandomSource random = workspace.random;
+			for (int i = 0; i < Sequence.DRAWS; ++i)
+				draws[i] = update(Gaussian.next(mean, variation, random), parameters.slip.next(random), parameters.guess.next(random), score,
+						parameters.transition);
+			Utils.makeGaussian(draws, Sequence.DRAWS, workspace.result);
+			Telemetry.count(Telemetry.DRAWS, Sequence.DRAWS);
+		}
+	}
+
+	/** Propagates mean and variation analytically, through the sigma points of the unscented transform. Dimensions with no variation are skipped. */
+	public static class Unscented extends KnowledgeEngine
+	{
+		/** Spreading of the sigma points: they are placed at sqrt(n + KAPPA) deviations, and the mean has weight KAPPA / (n + KAPPA). */
+		static final double KAPPA = 0.5;
+
+		@Override
+		protected void propagate(double mean, double variation, double score, KTParameters parameters, Workspace workspace)
+		{
+			double[][] inputs = workspace.inputs;
+			clamp(mean, variation, inputs[0]);
+			clamp(parameters.slip.mean, parameters.slip.variation, inputs[1]);
+			clamp(parameters.guess.mean, parameters.guess.variation, inputs[2]);
+			int dimensions = 0;
+			for (double[] input : inputs)
+				if (input[1] != 0) ++dimensions;
+
+			double spread = Math.sqrt(dimensions + KAPPA);
+			double center = update(inputs[0][0], inputs[1][0], inputs[2][0], score, parameters.transition);
+			double weight = 1 / (2 * (dimensions + KAPPA));
+			double[] values = workspace.draws, point = workspace.point;
+			double result = center * KAPPA / (dimensions + KAPPA);
+			for (int i = 0; i < inputs.length; ++i)
+			{
+				if (inputs[i][1] == 0) continue;
+				for (int sign = 0; sign < 2; ++sign)
+				{
+					for (int j = 0; j < inputs.length; ++j)
+						point[j] = inputs[j][0];
+					point[i] = Math.min(1, Math.max(0, point[i] + (sign == 0 ? spread : -spread) * inputs[i][1]));
+					values[2 * i + sign] = update(point[0], point[1], point[2], score, parameters.transition);
+					result += weight * values[2 * i + sign];
+				}
+			}
+
+			double variance = KAPPA / (dimensions + KAPPA) * (center - result) * (center - result);
+			for (int i = 0; i < inputs.length; ++i)
+				if (inputs[i][1] != 0) for (int sign = 0; sign < 2; ++sign)
+					variance += weight * (values[2 * i + sign] - result) * (values[2 * i + sign] - result);
+			workspace.result[0] = result;
+			workspace.result[1] = Math.sqrt(variance);
+		}
+	}
+
+	/** Buffers used by the engines, so that computing Knowledge doesn't allocate anything. One per thread, see {@link KnowledgeEngine#workspace()}. */
+	public static class Workspace
+	{
+		/** Random draws for {@link Sampling}, sigma point values for {@link Unscented}. */
+		final double[] draws = new double[Math.max(Sequence.DRAWS, 6)];
+		/** Clamped mean and variation of each input. */
+		final double[] knowledge = new double[2], slip = new double[2], guess = new double[2];
+		/** The inputs of {@link Unscented}: knowledge, slip and guess. */
+		final double[][] inputs = new double[][]
+		{ this.knowledge, this.slip, this.guess };
+		/** A sigma point. */
+		final double[] point = new double[3];
+		/** The random source for {@link Sampling}. Reset for each Sequence, see {@link Sequence#computeKnowledge(KTParameters, Metric, long)}. */
+		public final RandomSource random = new RandomSource(0);
+		/** Mean and variation of the last Knowledge computed. */
+		public final double[] result = new double[2];
+	}
+
+	/** The Workspace of each thread. */
+	private static final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>()
+	{
+		@Override
+		protected Workspace initialValue()
+		{
+			return new Workspace();
+		}
+	};
+
+	/** Computes the mean and variation of the input Gaussian once clamped between 0 and 1, and stores them in <code>result</code>. */
+	static void clamp(double mean, double variation, double[] result)
+	{
+		if (variation == 0)
+		{
+			result[0] = Math.min(1, Math.max(0, mean));
+			result[1] = 0;
+			return;
+		}
+
+		double a = -mean / variation, b = (1 - mean) / variation;
+		double inside = Utils.normalCdf(b) - Utils.normalCdf(a), above = 1 - Utils.normalCdf(b);
+		double pdfA = Utils.normalPdf(a), pdfB = Utils.normalPdf(b);
+
+		result[0] = above + mean * inside + variation * (pdfA - pdfB);
+		double square = above + (mean * mean + variation * variation) * inside + 2 * mean * variation * (pdfA - pdfB) + variation * variation
+				* (a * pdfA - b * pdfB);
+		result[1] = Math.sqrt(Math.max(0, square - result[0] * result[0]));
+	}
+
+	/** @return The engine with the input name: "sampling", "delta" or "unscented". null if there is none. */
+	public static KnowledgeEngine forName(String name)
+	{
+		if (name.equals("sampling")) return new Sampling();
+		if (name.equals("delta")) return new Delta();
+		if (name.equals("unscented")) return new Unscented();
+		return null;
+	}
+
+	/** Compares the accuracy and speed of each engine to sampling with a large number of draws, on random Knowledge and parameters.
+	 *
+	 * @param args - Optional: number of cases to test. */
+	public static void main(String[] args)
+	{
+		int cases = args.length == 0 ? 1000 : Integer.parseInt(args[0]), referenceDraws = 100000;
+		RandomSource random = new RandomSource(0);
+		Gaussian[] previous = new Gaussian[cases], reference = new Gaussian[cases];
+		KTParameters[] parameters = new KTParameters[cases];
+		double[] scores = new double[cases];
+		for (int c = 0; c < cases; ++c)
+		{
+			previous[c] = new Gaussian(random.nextDouble(), random.nextDouble() < 0.5 ? 0 : random.nextDouble() * 0.2);
+			parameters[c] = new KTParameters(0, random.nextDouble() * 0.5, new Gaussian(random.nextDouble() * 0.5, random.nextDouble() * 0.3), new Gaussian(
+					random.nextDouble() * 0.5, random.nextDouble() * 0.3));
+			scores[c] = random.nextDouble();
+
+			double sum = 0, squares = 0;
+			for (int d = 0; d < referenceDraws; ++d)
+			{
+				double value = update(previous[c].next(random), parameters[c].slip.next(random), parameters[c].guess.next(random), scores[c],
+						parameters[c].transition);
+				sum += value;
+				squares += value * value;
+			}
+			reference[c] = new Gaussian(sum / referenceDraws, Math.sqrt(Math.max(0, squares / referenceDraws - Math.pow(sum / referenceDraws, 2))));
+		}
+
+		System.out.println("engine    | mean error | variation error | ns per update");
+		for (String name : new String[]
+		{ "sampling", "delta", "unscented" })
+		{
+			KnowledgeEngine engine = forName(name);
+			double meanError = 0, variationError = 0;
+			for (int c = 0; c < cases; ++c)
+			{
+				Gaussian result = engine.computeKnowledge(previous[c], scores[c], parameters[c], c);
+				meanError += Math.abs(result.mean - reference[c].mean);
+				variationError += Math.abs(result.variation - reference[c].variation);
+			}
+
+			// Second run once warmed up, for timing only
+			long start = System.nanoTime();
+			for (int c = 0; c < cases; ++c)
+				engine.computeKnowledge(previous[c], scores[c], parameters[c], c);
+			long time = System.nanoTime() - start;
+			System.out.println(String.format("%-9s | %-10s | %-15s | %d", name, Utils.display(meanError / cases), Utils.display(variationError / cases), time
+					/ cases));
+		}
+	}
+
+	/** @return The Knowledge after a Problem with the input score, for the input values of previous Knowledge, slip and guess. */
+	static double update(double knowledge, double slip, double guess, double score, double transition)
+	{
+		double success = knowledge * (1 - slip) / (knowledge * (1 - slip) + (1 - knowledge) * guess);
+		double failure = knowledge * slip / (knowledge * slip + (1 - knowledge) * (1 - guess));
+		if (Double.isNaN(success)) success = 0;
+		if (Double.isNaN(failure)) failure = 0;
+
+		double weighted = success * score + failure * (1 - score);
+		return weighted + (1 - weighted) * transition;
+	}
+
+	/** @return The Workspace of the current thread. */
+	public static Workspace workspace()
+	{
+		return workspaces.get();
+	}
+
+	/** Finds the Knowledge with P(Ln-1) = previous and Ci = score. Convenience method for occasional use, allocates the result.
+	 * 
+	 * @param seed - The seed for the random values, if any. */
+	public Gaussian computeKnowledge(Gaussian previous, double score, KTParameters parameters, long seed)
+	{
+		Workspace workspace = workspace();
+		workspace.random.reset(seed);
+		this.computeKnowledge(previous.mean, previous.variation, score, parameters, workspace);
+		return new Gaussian(workspace.result[0], workspace.result[1]);
+	}
+
+	/** Finds the Knowledge with P(Ln-1) = (mean, variation) and Ci = score, and stores it in {@link Workspace#result}. If nothing varies, directly computes
+	 * it. */
+	public void computeKnowledge(double mean, double variation, double score, KTParameters parameters, Workspace workspace)
+	{
+		if (variation == 0 && parameters.slip.variation == 0 && parameters.guess.variation == 0)
+		{
+			workspace.result[0] = update(Math.min(1, Math.max(0, mean)), Math.min(1, Math.max(0, parameters.slip.mean)),
+					Math.min(1, Math.max(0, parameters.guess.mean)), score, parameters.transition);
+			workspace.result[1] = 0;
+		} else this.propagate(mean, variation, score, parameters, workspace);
+	}
+
+	/** Finds the Knowledge with P(Ln-1) = (mean, variation) and Ci = score when at least one of them varies, and stores it in {@link Workspace#result}. */
+	protected abstract void propagate(double mean, double variation, double score, KTParameters parameters, Workspace workspace);
+
+}
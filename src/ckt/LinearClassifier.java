@@ -0,0 +1,272 @@
+package ckt;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/** Trains L2-regularized linear classifiers: minimizes 1/2 |w|^2 + C * sum of loss(y * w.x), where the intercept is an extra feature of value 1,
+ * regularized too as in LIBLINEAR.<br />
+ * C is chosen by cross validation, with the folds of each value of C trained in parallel on {@link Main#pool}. */
+public class LinearClassifier
+{
+	/** Training of a single value of C on a single fold, for {@link LinearClassifier#search(double[])}. */
+	private class Validation extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		/** The value of C. */
+		final double c;
+		/** The number of rows of the fold classified correctly. */
+		int correct;
+		/** The fold to test on. */
+		final int fold;
+
+		Validation(double c, int fold)
+		{
+			this.c = c;
+			this.fold = fold;
+		}
+
+		@Override
+		protected void compute()
+		{
+			double[] weights = train(this.c, this.fold, true);
+			for (int i = this.fold; i < size; i += FOLDS)
+				if (predict(weights, i) == labels[i]) ++this.correct;
+		}
+	}
+
+	/** Number of folds to choose C. Row i is in fold i % FOLDS. */
+	static final int FOLDS = 5;
+	/** Maximum number of Newton iterations. */
+	static final int ITERATIONS = 100;
+	/** Loss functions. Squared hinge is the loss of a linear SVM. */
+	public static final byte SQUARED_HINGE = 0, LOGISTIC = 1;
+	/** Training stops when the norm of the gradient is below this, relative to its initial norm. */
+	static final double TOLERANCE = 1e-6;
+
+	/** The values of C tried by {@link LinearClassifier#search(double[])} if none are given: powers of 2 from 2^-6 to 2^6. */
+	public static double[] defaultC()
+	{
+		double[] c = new double[13];
+		for (int i = 0; i < c.length; ++i)
+			c[i] = Math.pow(2, i - 6);
+		return c;
+	}
+
+	/** The cross validation accuracy of {@link LinearClassifier#bestC}. */
+	public double bestAccuracy;
+	/** The value of C chosen by the last {@link LinearClassifier#search(double[])}. */
+	public double bestC;
+	/** features[j][i]: The value of the feature j for the row i. */
+	private final double[][] features;
+	/** The label of each row. */
+	private final boolean[] labels;
+	/** The loss function: {@link LinearClassifier#SQUARED_HINGE} or {@link LinearClassifier#LOGISTIC}. */
+	public final byte loss;
+	/** The number of rows. */
+	public final int size;
+
+	/** @param features - features[j][i]: The value of the feature j for the row i.
+	 * @param labels - The label of each row. */
+	public LinearClassifier(double[][] features, boolean[] labels, byte loss)
+	{
+		this.features = features;
+		this.labels = labels;
+		this.loss = loss;
+		this.size = labels.length;
+	}
+
+	/** Computes the loss for the input margin, and stores its first and second derivatives in <code>derivatives</code>.
+	 *
+	 * @param margin - y * w.x
+	 * @return The loss. */
+	private double loss(double margin, double[] derivatives)
+	{
+		if (this.loss == LOGISTIC)
+		{
+			double sigma = 1 / (1 + Math.exp(-margin));
+			derivatives[0] = sigma - 1;
+			derivatives[1] = sigma * (1 - sigma);
+			return margin > 0 ? Math.log1p(Math.exp(-margin)) : -margin + Math.log1p(Math.exp(margin));
+		}
+
+		if (margin >= 1)
+		{
+			derivatives[0] = derivatives[1] = 0;
+			return 0;
+		}
+		derivatives[0] = -2 * (1 - margin);
+		derivatives[1] = 2;
+		return (1 - margin) * (1 - margin);
+	}
+
+	/** @return The objective at the input weights: 1/2 |w|^2 + sum of cost * loss. Sets z[i] to w.x for each row. */
+	private double objective(double[] weights, int excluded, double positiveCost, double negativeCost, double[] z, double[] derivatives)
+	{
+		double objective = 0;
+		for (double weight : weights)
+			objective += weight * weight / 2;
+		for (int i = 0; i < this.size; ++i)
+		{
+			if (excluded != -1 && i % FOLDS == excluded) continue;
+			z[i] = weights[this.features.length];
+			for (int j = 0; j < this.features.length; ++j)
+				z[i] += weights[j] * this.features[j][i];
+			objective += (this.labels[i] ? positiveCost : negativeCost) * this.loss((this.labels[i] ? 1 : -1) * z[i], derivatives);
+		}
+		return objective;
+	}
+
+	/** @return The predicted label of the input row. */
+	private boolean predict(double[] weights, int row)
+	{
+		double z = weights[this.features.length];
+		for (int j = 0; j < this.features.length; ++j)
+			z += weights[j] * this.features[j][row];
+		return z >= 0;
+	}
+
+	/** Chooses C by cross validation, then trains on all rows with it.
+	 *
+	 * @param c - The values of C to try.
+	 * @return The weight of each feature, then the intercept. */
+	public double[] search(double[] c)
+	{
+		final Validation[] validations = new Validation[c.length * FOLDS];
+		for (int i = 0; i < c.length; ++i)
+			for (int fold = 0; fold < FOLDS; ++fold)
+				validations[i * FOLDS + fold] = new Validation(c[i], fold);
+
+		if (ForkJoinTask.inForkJoinPool()) ForkJoinTask.invokeAll(validations);
+		else Main.pool.invoke(new RecursiveAction()
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute()
+			{
+				invokeAll(validations);
+			}
+		});
+
+		this.bestAccuracy = -1;
+		for (int i = 0; i < c.length; ++i)
+		{
+			int correct = 0;
+			for (int fold = 0; fold < FOLDS; ++fold)
+				correct += validations[i * FOLDS + fold].correct;
+			if (correct * 1. / this.size > this.bestAccuracy)
+			{
+				this.bestAccuracy = correct * 1. / this.size;
+				this.bestC = c[i];
+			}
+		}
+
+		return this.train(this.bestC, -1, false);
+	}
+
+	/** Trains a classifier with Newton's method: each iteration solves the quadratic approximation of the objective, then halves the step until the
+	 * objective decreases enough. There are few features, so the Hessian is small.
+	 *
+	 * @param excluded - The fold to leave out, -1 to use all rows.
+	 * @param balanced - True to weight rows so that both labels have the same total weight.
+	 * @return The weight of each feature, then the intercept. */
+	public double[] train(double c, int excluded, boolean balanced)
+	{
+		int dimensions = this.features.length + 1, positives = 0, count = 0;
+		for (int i = 0; i < this.size; ++i)
+			if (excluded == -1 || i % FOLDS != excluded)
+			{
+				++count;
+				if (this.labels[i]) ++positives;
+			}
+		double positiveCost = c, negativeCost = c;
+		if (balanced && positives != 0 && positives != count)
+		{
+			positiveCost = c * count / (2. * positives);
+			negativeCost = c * count / (2. * (count - positives));
+		}
+
+		double[] weights = new double[dimensions], next = new double[dimensions], gradient = new double[dimensions], direction = new double[dimensions];
+		double[] z = new double[this.size], derivatives = new double[2], x = new double[dimensions];
+		double[][] hessian = new double[dimensions][dimensions];
+		double objective = this.objective(weights, excluded, positiveCost, negativeCost, z, derivatives), initialNorm = -1;
+		for (int iteration = 0; iteration < ITERATIONS; ++iteration)
+		{
+			// Gradient and Hessian: w + sum of cost * loss' * y * x, and I + sum of cost * loss'' * x * x^T
+			for (int j = 0; j < dimensions; ++j)
+			{
+				gradient[j] = weights[j];
+				for (int k = 0; k < dimensions; ++k)
+					hessian[j][k] = j == k ? 1 : 0;
+			}
+			x[dimensions - 1] = 1;
+			for (int i = 0; i < this.size; ++i)
+			{
+				if (excluded != -1 && i % FOLDS == excluded) continue;
+				double y = this.labels[i] ? 1 : -1, cost = this.labels[i] ? positiveCost : negativeCost;
+				this.loss(y * z[i], derivatives);
+				if (derivatives[0] == 0 && derivatives[1] == 0) continue;
+				for (int j = 0; j < this.features.length; ++j)
+					x[j] = this.features[j][i];
+				for (int j = 0; j < dimensions; ++j)
+				{
+					gradient[j] += cost * derivatives[0] * y * x[j];
+					for (int k = 0; k <= j; ++k)
+						hessian[j][k] += cost * derivatives[1] * x[j] * x[k];
+				}
+			}
+
+			double norm = 0;
+			for (double g : gradient)
+				norm += g * g;
+			norm = Math.sqrt(norm);
+			if (initialNorm == -1) initialNorm = norm;
+			if (norm <= TOLERANCE * Math.max(1, initialNorm)) break;
+
+			// Solves hessian * direction = -gradient with the Cholesky decomposition of the lower triangle
+			for (int j = 0; j < dimensions; ++j)
+			{
+				for (int k = 0; k < j; ++k)
+					hessian[j][j] -= hessian[j][k] * hessian[j][k];
+				hessian[j][j] = Math.sqrt(hessian[j][j]);
+				for (int l = j + 1; l < dimensions; ++l)
+				{
+					for (int k = 0; k < j; ++k)
+						hessian[l][j] -= hessian[l][k] * hessian[j][k];
+					hessian[l][j] /= hessian[j][j];
+				}
+			}
+			for (int j = 0; j < dimensions; ++j)
+			{
+				direction[j] = -gradient[j];
+				for (int k = 0; k < j; ++k)
+					direction[j] -= hessian[j][k] * direction[k];
+				direction[j] /= hessian[j][j];
+			}
+			for (int j = dimensions - 1; j >= 0; --j)
+			{
+				for (int k = j + 1; k < dimensions; ++k)
+					direction[j] -= hessian[k][j] * direction[k];
+				direction[j] /= hessian[j][j];
+			}
+
+			double slope = 0;
+			for (int j = 0; j < dimensions; ++j)
+				slope += gradient[j] * direction[j];
+			double step = 1, nextObjective = objective;
+			for (int search = 0; search < 30; ++search, step /= 2)
+			{
+				for (int j = 0; j < dimensions; ++j)
+					next[j] = weights[j] + step * direction[j];
+				nextObjective = this.objective(next, excluded, positiveCost, negativeCost, z, derivatives);
+				if (nextObjective <= objective + 0.01 * step * slope) break;
+			}
+			if (nextObjective > objective) break;
+			System.arraycopy(next, 0, weights, 0, dimensions);
+			objective = nextObjective;
+		}
+		return weights;
+	}
+
+}
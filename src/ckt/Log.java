@@ -0,0 +1,243 @@
+package ckt;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/** The log of the run. Callers only put a record in a ring buffer: the "log" thread prints the messages and writes the records to the log file as they
+ * come, one JSON object per line with the time, level, thread, stage and Sequence. The file is flushed whenever the buffer is empty, so it is complete up to
+ * the last records even if the run stops unexpectedly.<br />
+ * Writers claim slots of the buffer with an atomic counter, so parallel workers don't wait on each other. They only wait when the buffer is full, for the
+ * log thread to catch up. Before {@link Log#start(File)} and after {@link Log#close()}, messages are printed directly: the log thread only stops once the
+ * writers that saw it open have put their record. */
+public class Log
+{
+	/** A message, with where it came from. */
+	private static class Record
+	{
+		final byte level;
+		final String message, sequence, stage, thread;
+		/** When the message was logged, in milliseconds since the epoch. */
+		final long time;
+
+		Record(byte level, String sequence, String message)
+		{
+			this.time = System.currentTimeMillis();
+			this.level = level;
+			this.sequence = sequence;
+			this.message = message;
+			this.stage = Log.stage.get();
+			this.thread = Thread.currentThread().getName();
+		}
+	}
+
+	public static final byte DEBUG = 0, INFO = 1, WARNING = 2, ERROR = 3;
+	/** The name of each level. */
+	static final String[] LEVELS = new String[]
+	{ "DEBUG", "INFO", "WARNING", "ERROR" };
+	/** The number of records the buffer holds. A power of 2. */
+	private static final int CAPACITY = 1 << 12;
+
+	/** True once {@link Log#close()} was called, or once the log thread stopped on an error. */
+	private static volatile boolean closed;
+	/** The next slot the log thread reads. Only the log thread changes it. */
+	private static volatile long head;
+	/** The lowest level logged. */
+	private static volatile byte level = INFO;
+	/** The records waiting to be written, at their slot modulo {@link Log#CAPACITY}. */
+	private static final AtomicReferenceArray<Record> slots = new AtomicReferenceArray<Record>(CAPACITY);
+	/** The stage run by each thread, see {@link Telemetry#start(String)}. */
+	private static final ThreadLocal<String> stage = new ThreadLocal<String>();
+	/** The next slot claimed by a writer. */
+	private static final AtomicLong tail = new AtomicLong();
+	/** Writes the records, null if the log didn't start. */
+	private static volatile Thread thread;
+	/** The number of writers between their check of {@link Log#closed} and their record being put. */
+	private static final AtomicInteger writers = new AtomicInteger();
+
+	/** Writes the remaining records and stops the log thread. Following messages are printed directly. */
+	public static void close()
+	{
+		Thread thread = Log.thread;
+		if (thread == null || closed) return;
+		closed = true;
+		LockSupport.unpark(thread);
+		try
+		{
+			thread.join();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Prints the records and writes them to the log file until the log is closed. */
+	private static void drain(Writer writer) throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		while (true)
+		{
+			int slot = (int) (head & (CAPACITY - 1));
+			Record record = slots.get(slot);
+			if (record == null)
+			{
+				if (writer != null) writer.flush();
+				// A writer counted after this check sees the log closed, and prints its message.
+				if (closed && writers.get() == 0 && head == tail.get()) return;
+				LockSupport.parkNanos(10000000);
+				continue;
+			}
+			slots.set(slot, null);
+			head = head + 1;
+
+			System.out.println(record.message);
+			if (writer == null) continue;
+			line.setLength(0);
+			line.append("{\"time\": \"").append(Instant.ofEpochMilli(record.time)).append("\", \"level\": \"").append(LEVELS[record.level]).append(
+					"\", \"thread\": ");
+			quote(record.thread, line);
+			if (record.stage != null) quote(record.stage, line.append(", \"stage\": "));
+			if (record.sequence != null) quote(record.sequence, line.append(", \"sequence\": "));
+			quote(record.message, line.append(", \"message\": "));
+			writer.append(line.append("}\n"));
+		}
+	}
+
+	/** @return The level of the input name, -1 if there is none. */
+	public static byte level(String name)
+	{
+		for (byte l = 0; l < LEVELS.length; ++l)
+			if (LEVELS[l].equalsIgnoreCase(name)) return l;
+		return -1;
+	}
+
+	/** Appends the input text to the input line, quoted as a JSON string. */
+	private static void quote(String text, StringBuilder line)
+	{
+		line.append('"');
+		for (int i = 0; i < text.length(); ++i)
+		{
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') line.append('\\').append(c);
+			else if (c == '\n') line.append("\\n");
+			else if (c == '\r') line.append("\\r");
+			else if (c == '\t') line.append("\\t");
+			else if (c < ' ') line.append(String.format("\\u%04x", (int) c));
+			else line.append(c);
+		}
+		line.append('"');
+	}
+
+	/** Sets the lowest level logged. */
+	public static void setLevel(byte level)
+	{
+		Log.level = level;
+	}
+
+	/** Sets the stage run by the current thread, written with its records.
+	 *
+	 * @return The previous stage of the thread, to set it back when the stage ends. */
+	static String setStage(String stage)
+	{
+		String previous = Log.stage.get();
+		Log.stage.set(stage);
+		return previous;
+	}
+
+	/** Starts the log thread, writing the records to the input file, replaced. The log is closed when the JVM shuts down.
+	 *
+	 * @param file - The log file, null to only print the messages. */
+	public static void start(File file) throws IOException
+	{
+		final Writer writer = file == null ? null : new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+		Thread thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					drain(writer);
+				} catch (IOException e)
+				{
+					e.printStackTrace();
+				} finally
+				{
+					// Following messages are printed directly, if the log thread stopped on an error.
+					closed = true;
+					if (writer != null) try
+					{
+						writer.close();
+					} catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+		}, "log");
+		thread.setDaemon(true);
+		Log.thread = thread;
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				close();
+			}
+		}));
+	}
+
+	/** Logs a message.
+	 *
+	 * @param sequence - The Sequence the message is about, null if none. */
+	public static void write(byte level, String sequence, String message)
+	{
+		if (level < Log.level) return;
+		Thread thread = Log.thread;
+		if (thread == null)
+		{
+			System.out.println(message);
+			return;
+		}
+
+		writers.incrementAndGet();
+		try
+		{
+			if (closed)
+			{
+				System.out.println(message);
+				return;
+			}
+
+			Record record = new Record(level, sequence, message);
+			long slot = tail.getAndIncrement();
+			// The buffer is full: waits for the log thread to free the slot, unless it stopped on an error.
+			while (slot - head >= CAPACITY)
+			{
+				if (!thread.isAlive())
+				{
+					System.out.println(message);
+					return;
+				}
+				LockSupport.unpark(thread);
+				LockSupport.parkNanos(100000);
+			}
+			slots.set((int) (slot & (CAPACITY - 1)), record);
+		} finally
+		{
+			writers.decrementAndGet();
+		}
+		LockSupport.unpark(thread);
+	}
+
+}
@@ -3,37 +3,56 @@ package ckt;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Predicate;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
 
 import ckt.KTParameters.Gaussian;
 
 public class Main
 {
+	/** Keys to derive the seed of each random step from {@link Main#seed}. */
+	private static final long SEED_MAIN = 0, SEED_METRIC = 1, SEED_EXPECTED = 2, SEED_AGGREGATION = 3;
+	/** The columns of the output Sequences file. */
+	static final String[] PROBLEMS_HEADER = new String[]
+	{ "sequence", "problem", "computed_knowledge", "computed_variation", "aggregated_knowledge", "aggregated_variation", "learned", "learned_aggregation",
+			"expected", "sequence_rmse" };
+	/** The settings a sweep can vary, see {@link Main#sweep(File)}. The others change how the input is read. */
+	private static final String[] SWEEP_SETTINGS = new String[]
+	{ "correctness", "cross_validation", "metric_threshold", "smooth_rmse", "split" };
+
+	/** Aggregates the metric scores and metric Knowledge. */
+	static AggregationFunction aggregation;
 	/** The Precision for aggregated metrics. */
 	static double aggregatedPrecision;
 	/** Constant to add to the metrics aggregation. */
 	static double aggregationBase;
 	/** Stores all the Sequences used for cross validation. */
 	static ArrayList<Sequence> allSequences;
-	/** Stores the Sequences used as learning set. */
-	static ArrayList<Sequence> learningSet;
-	static ArrayList<String> log = new ArrayList<String>();
+	/** The parameters for the Knowledge on expected scores. */
+	static KTParameters[] expectedParameters;
 	/** The parameters for main Knowledge. */
 	static KTParameters[] mainParameters;
+	/** The parameters for each metric. */
+	static KTParameters[][] metricParameters;
 	/** The available metrics. */
 	static ArrayList<Metric> metrics;
+	/** The model loaded with the "model" setting, to score the input without training. null to train. */
+	static Model model;
+	/** The pool running the parallel steps. */
+	static ForkJoinPool pool;
+	/** The seed of the run, from the "seed" setting. Every random value is derived from it, so runs with the same seed give the same results. */
+	static long seed;
+	/** The number of worker processes for cross validation, from the "shards" setting. 0 to run it in this process, see {@link ShardExecutor}. */
+	static int shards;
 	/** Settings from settings.properties */
 	static Properties settings;
-	/** Stores the Sequences used as testing set. */
-	static ArrayList<Sequence> testingSet;
+	/** Stores the metric scores and metric Knowledge of all Problems. */
+	static ProblemStore store;
 	/** The number of Sequences to use as testing set for each step in cross validation. */
 	static int testingSize;
 	/** The total number of problems. */
@@ -49,157 +68,126 @@ public class Main
 		log("Aggregating metrics...");
 		if (settings.getProperty("aggregation_type").equals("svm") || settings.getProperty("aggregation_type").equals("input"))
 		{
-			// Applying SVM script
-			exportData(new File("resultat.csv"), outputSVM(settings.getProperty("aggregation_type").equals("svm")));
-
-			if (settings.getProperty("aggregation_type").equals("svm"))
+			if (model != null)
 			{
-				if (!new File(settings.getProperty("aggregation_value")).exists())
-				{
-					System.out.println("SVM file not found");
-					return false;
-				}
-
-				try
-				{
-					System.out.println("Running python SVM...");
-					Process p = Runtime.getRuntime().exec("python " + settings.getProperty("aggregation_value"));
-					while (p.isAlive())
-						Thread.sleep(100);
-				} catch (IOException e)
-				{
-					e.printStackTrace();
-					return false;
-				} catch (InterruptedException e)
-				{
-					e.printStackTrace();
-				}
-
-				System.out.println("SVM completed.");
+				// The weights come from the model
+			} else if (settings.getProperty("aggregation_type").equals("svm"))
+			{
+				if (!trainClassifier()) return false;
 			} else
 			{
+				exportData(new File("resultat.csv"), outputSVM(false));
 				System.out.println("Waiting... Press Enter when the weights file is ready.");
 				new Scanner(System.in).nextLine();
-			}
 
-			// Gathering SVM data
-			String weightsData = Utils.readTextFile(settings.getProperty("aggregation_type").equals("svm") ? "weights.txt" : settings
-					.getProperty("aggregation_value"));
-			weightsData = weightsData.replaceAll("\\n", "").replaceAll("\\[", "").replaceAll("\\]", "");
-			while (weightsData.contains("  "))
-				weightsData = weightsData.replaceAll("  ", " ");
-			String[] weights = weightsData.split(" ");
-			if (weights.length < metrics.size()) log("SVM failed !");
-			for (int i = 1; i <= metrics.size(); ++i)
-				metrics.get(i - 1).weight = Double.parseDouble(weights[i]) * 1. / 1000000.;
+				// Gathering SVM data
+				String weightsData = Utils.readTextFile(settings.getProperty("aggregation_value"));
+				weightsData = weightsData.replaceAll("\\n", "").replaceAll("\\[", "").replaceAll("\\]", "");
+				while (weightsData.contains("  "))
+					weightsData = weightsData.replaceAll("  ", " ");
+				String[] weights = weightsData.split(" ");
+				if (weights.length < metrics.size()) log(Log.WARNING, "SVM failed !");
+				for (int i = 1; i <= metrics.size(); ++i)
+					metrics.get(i - 1).weight = Double.parseDouble(weights[i]) * 1. / 1000000.;
+			}
 
 			// Aggregating
+			double[][] draws = new double[metrics.size()][Sequence.DRAWS];
 			double[] aggregated = new double[Sequence.DRAWS];
+			RandomSource random = new RandomSource(0);
 			for (Sequence sequence : allSequences)
+			{
+				random.reset(RandomSource.derive(seed, SEED_AGGREGATION, RandomSource.hash(sequence.name)));
 				for (Problem problem : sequence.problems)
-				{
-					for (int d = 0; d < Sequence.DRAWS; ++d)
-					{
-						aggregated[d] = 0;
-						for (Metric metric : metrics)
-							aggregated[d] += metric.weight * problem.metricKnowledge.get(metric).next();
-					}
-					problem.aggregatedKnowledge = Utils.makeGaussian(aggregated);
-				}
+					aggregateProblem(problem, store, false, draws, aggregated, random);
+			}
 		} else
 		{
-			ScriptEngine script = new ScriptEngineManager().getEngineByName("nashorn");
-			File file = null;
-			if (settings.getProperty("aggregation_type").equals("script")) file = new File(settings.getProperty("aggregation_value"));
-
 			int invalid = 0;
-			double[] scores = new double[metrics.size()];
+			double[][] draws = new double[metrics.size()][Sequence.DRAWS];
 			double[] aggregated = new double[Sequence.DRAWS];
-			for (Sequence sequence : allSequences)
-				for (Problem problem : sequence.problems)
+			RandomSource random = new RandomSource(0);
+			try
+			{
+				for (Sequence sequence : allSequences)
 				{
-					for (int d = 0; d < Sequence.DRAWS; ++d)
+					random.reset(RandomSource.derive(seed, SEED_AGGREGATION, RandomSource.hash(sequence.name)));
+					for (Problem problem : sequence.problems)
 					{
-						if (file == null)
-						{
-							aggregated[d] = aggregationBase;
-							// if (allSequences.indexOf(sequence) <= 10 && d == 0) log();
-							for (Metric metric : metrics)
-							{
-								/* if (allSequences.indexOf(sequence) <= 10 && d == 0) log(metric.name + ": " + metric.weight + " * " + metric.initialDistribution.unreduce(sequence.finalProblem().metricKnowledge.get(metric).next())); */
-								aggregated[d] += metric.weight * metric.initialDistribution.unreduce(problem.metricKnowledge.get(metric).next());
-							}
-						} else try
-						{
-							for (int m = 0; m < metrics.size(); ++m)
-								scores[m] = metrics.get(m).initialDistribution.unreduce(problem.metricKnowledge.get(metrics.get(m)).next());
-
-							// Input: double[] containing scores for each metric for a single problem.
-							// Output: aggregated score as a double.
-							script.put("metrics", scores);
-							script.eval(new BufferedReader(new FileReader(file)));
-							aggregated[d] = (double) script.get("aggregated");
-						} catch (FileNotFoundException e)
-						{
-							log("Couldn't find aggregation script: " + settings.getProperty("aggregation_script"));
-							return false;
-						} catch (Exception e)
-						{
-							log("Error while aggregating metrics:\n" + e.getMessage());
-							return false;
-						}
-						if (aggregated[d] >= 1) aggregated[d] = 1;
+						aggregateProblem(problem, store, true, draws, aggregated, random);
+						if (problem.aggregatedKnowledge.mean > 1) ++invalid;
 					}
-					problem.aggregatedKnowledge = Utils.makeGaussian(aggregated);
-					if (problem.aggregatedKnowledge.mean > 1) ++invalid;
-
 				}
-			if (invalid != 0) log("Found " + invalid + " invalid knowledge values!");
+			} catch (Exception e)
+			{
+				log(Log.ERROR, "Error while aggregating metrics:\n" + e.getMessage());
+				return false;
+			}
+			if (invalid != 0) log(Log.WARNING, "Found " + invalid + " invalid knowledge values!");
 		}
 		return true;
 	}
 
-	private static void applyKnowledgeTracing(Metric metric)
+	/** Sets the aggregated Knowledge of the input Problem: draws values of its metric Knowledge, and aggregates them with {@link Main#aggregation}.
+	 * 
+	 * @param store - The store of the Problem, with its metric Knowledge.
+	 * @param unreduce - True to aggregate unreduced values, and cap the results at 1.
+	 * @param draws - Receives the drawn values, {@link Sequence#DRAWS} for each metric.
+	 * @param aggregated - Receives the aggregated values.
+	 * @param random - Draws the values. */
+	static void aggregateProblem(Problem problem, ProblemStore store, boolean unreduce, double[][] draws, double[] aggregated, RandomSource random)
 	{
-		if (metric == null) log("Executing Knowledge Tracing...");
-		else log("Executing Knowledge Tracing on metric \"" + metric.name + "\"...");
-		if (metric != null) applyThreshold(metric);
-		findKnowledgeSequences();
+		for (int d = 0; d < Sequence.DRAWS; ++d)
+			for (Metric metric : metrics)
+			{
+				double value = Gaussian.next(store.knowledgeMean[metric.index][problem.ordinal], store.knowledgeVariation[metric.index][problem.ordinal], random);
+				draws[metric.index][d] = unreduce ? metric.initialDistribution.unreduce(value) : value;
+			}
 
-		KTParameters[] params = new KTParameters[validations + 2];
-		if (metric == null) mainParameters = params;
+		Telemetry.count(Telemetry.DRAWS, Sequence.DRAWS * metrics.size());
+		aggregation.aggregate(draws, 0, Sequence.DRAWS, aggregated);
+		if (unreduce) for (int d = 0; d < Sequence.DRAWS; ++d)
+			if (aggregated[d] >= 1) aggregated[d] = 1;
+		problem.aggregatedKnowledge = Utils.makeGaussian(aggregated);
+	}
 
-		for (int i = 0; i < validations; ++i)
+	/** Applies Knowledge Tracing on views of the input Sequences, see {@link Sequence#view(Metric)}. Several passes can run at the same time.
+	 * 
+	 * @param metric - The Metric to determine correctness and Knowledge with, null for the main Knowledge.
+	 * @param trained - The parameters of this pass in {@link Main#model}, null to find them with cross validation.
+	 * @param seed - The seed of this pass.
+	 * @return The parameters found for each step of cross validation, <code>trained</code> if not null. */
+	private static KTParameters[] applyKnowledgeTracing(ArrayList<Sequence> sequences, Metric metric, KTParameters[] trained, long seed)
+	{
+		if (metric == null) log("Executing Knowledge Tracing...");
+		else log("Executing Knowledge Tracing on metric \"" + metric.name + "\"...");
+		ArrayList<Sequence> views = new ArrayList<Sequence>(sequences.size());
+		for (Sequence sequence : sequences)
+			views.add(sequence.view(metric));
+		if (trained != null)
 		{
-			learningSet.clear();
-			testingSet.clear();
-			for (int j = 0; j < allSequences.size(); ++j)
-				if (j < i * testingSize || j >= (i + 1) * testingSize) learningSet.add(allSequences.get(j));
-				else testingSet.add(allSequences.get(j));
-
-			params[i] = computeParameters();
-			computeKnowledge(params[i], metric);
+			new FoldExecutor(views, validations, testingSize).apply(trained[validations], metric, seed);
+			return trained;
+		}
+		KTParameters[] params;
+		if (shards != 0) params = new ShardExecutor(views, validations, testingSize, shards).execute(metric, seed);
+		else
+		{
+			findKnowledgeSequences(views);
+			params = new FoldExecutor(views, validations, testingSize).execute(metric, seed);
 		}
-		if (metric == null) computeStats(params);
+		computeStats(params);
+		return params;
 	}
 
-	/** Uses the input <code>threshold</code> to determine the correctness of the problem. */
-	private static void applyThreshold(double threshold)
+	/** Uses the input <code>threshold</code> to determine the correctness of the problems of the input Sequences. */
+	private static void applyThreshold(List<Sequence> sequences, double threshold)
 	{
-		for (Sequence sequence : allSequences)
+		for (Sequence sequence : sequences)
 			for (Problem problem : sequence.problems)
 				problem.isCorrect = problem.score >= threshold;
 	}
 
-	/** Uses the metric's <code>threshold</code> to determine the correctness of the problem. */
-	private static void applyThreshold(Metric metric)
-	{
-		for (Sequence sequence : allSequences)
-			for (Problem problem : sequence.problems)
-				problem.isCorrect = (!metric.thresholdReversed && problem.metricScores.get(metric) >= metric.threshold)
-						|| (metric.thresholdReversed && problem.metricScores.get(metric) < metric.threshold);
-	}
-
 	/** 1) Removes empty sequences.<br />
 	 * 2) Sorts problems in sequences chronologically.<br />
 	 * 3) Reduces and centers problem scores between 0 and 1 if <code>center</code> is true.<br />
@@ -211,7 +199,7 @@ public class Main
 			@Override
 			public boolean test(Sequence t)
 			{
-				if (t.problems.size() == 0) log("Sequence " + t.name + " has no problems !");
+				if (t.problems.size() == 0) Log.write(Log.WARNING, t.name, "Sequence " + t.name + " has no problems !");
 				return t.problems.size() == 0;
 			}
 		});
@@ -226,8 +214,10 @@ public class Main
 			double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
 			for (Sequence sequence : allSequences)
 				for (Problem problem : sequence.problems)
+				{
 					if (problem.score < min) min = problem.score;
-					else if (problem.score > max) max = problem.score;
+					if (problem.score > max) max = problem.score;
+				}
 
 			for (Sequence sequence : allSequences)
 				for (Problem problem : sequence.problems)
@@ -238,18 +228,16 @@ public class Main
 		{
 			for (Metric metric : metrics)
 			{
+				double[] scores = store.scores[metric.index];
 				double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
-				for (Sequence sequence : allSequences)
-					for (Problem problem : sequence.problems)
-					{
-						double score = problem.metricScores.get(metric);
-						if (score < min) min = score;
-						else if (score > max) max = score;
-					}
+				for (int p = 0; p < store.size; ++p)
+				{
+					if (scores[p] < min) min = scores[p];
+					if (scores[p] > max) max = scores[p];
+				}
 
-				for (Sequence sequence : allSequences)
-					for (Problem problem : sequence.problems)
-						problem.metricScores.put(metric, (problem.metricScores.get(metric) - min) / (max - min));
+				for (int p = 0; p < store.size; ++p)
+					scores[p] = (scores[p] - min) / (max - min);
 
 				metric.threshold = (metric.threshold - min) / (max - min);
 				metric.initialDistribution = new Gaussian(min, max - min);
@@ -257,46 +245,51 @@ public class Main
 		}
 	}
 
-	/** Computes the Knowledge of the Sequences. */
-	private static void computeKnowledge(KTParameters parameters, Metric metric)
-	{
-		for (Sequence sequence : testingSet)
-			sequence.computeKnowledge(parameters, metric);
-	}
-
-	/** Determines P(L0), P(T), P(G), P(S). Analyzes the {@link Main#learningSet learning set} and returns the parameters. */
-	private static KTParameters computeParameters()
+	/** Determines P(L0), P(T), P(G), P(S). Analyzes the input learning set and returns the parameters. */
+	static KTParameters computeParameters(List<Sequence> learningSet, RandomSource random)
 	{
-		double kStart = 0, mTransition = 0, mGuess = 0, mSlip = 0;
+		double kStart = 0;
 
 		// P(L0)
 		int count = 0;
 		for (Sequence sequence : learningSet)
 		{
-			kStart += sequence.knowledgeSequence.get(0);
+			kStart += sequence.knowledgeSequence[0];
 			++count;
-			/* Tried using more than one for starting knowledge, but had close to no impact. if (sequence.knowledgeSequence.size() > 1) { kStart += sequence.knowledgeSequence.get(1); ++s; } if (sequence.knowledgeSequence.size() > 2) { kStart += sequence.knowledgeSequence.get(2); ++s; } */
+			/* Tried using more than one for starting knowledge, but had close to no impact. if (sequence.knowledgeSequence.length > 1) { kStart += sequence.knowledgeSequence[1]; ++s; } if (sequence.knowledgeSequence.length > 2) { kStart += sequence.knowledgeSequence[2]; ++s; } */
 		}
 		kStart /= count;
 
+		KTParameters[] probabilities = new KTParameters[learningSet.size()];
+		for (int i = 0; i < probabilities.length; ++i)
+			probabilities[i] = learningSet.get(i).computeProbabilities(kStart);
+		return computeParameters(kStart, probabilities, random);
+	}
+
+	/** Determines P(T), P(G), P(S) from the probabilities of each Sequence of a learning set, see {@link Sequence#computeProbabilities(double)}.
+	 * 
+	 * @param kStart - P(L0) of the learning set. */
+	static KTParameters computeParameters(double kStart, KTParameters[] probabilities, RandomSource random)
+	{
+		double mTransition = 0, mGuess = 0, mSlip = 0;
+
 		// mu(P(T)), mu(P(G)), mu(P(S))
 		int tCount = 0, gCount = 0, sCount = 0;
-		for (Sequence sequence : learningSet)
+		for (int i = 0; i < probabilities.length; ++i)
 		{
-			sequence.computeProbabilities(kStart);
-			if (!Double.isNaN(sequence.parameters.transition))
+			if (!Double.isNaN(probabilities[i].transition))
 			{
-				mTransition += sequence.parameters.transition;
+				mTransition += probabilities[i].transition;
 				++tCount;
 			}
-			if (!Double.isNaN(sequence.parameters.guess.mean))
+			if (!Double.isNaN(probabilities[i].guess.mean))
 			{
-				mGuess += sequence.parameters.guess.next();
+				mGuess += probabilities[i].guess.next(random);
 				++gCount;
 			}
-			if (!Double.isNaN(sequence.parameters.slip.mean))
+			if (!Double.isNaN(probabilities[i].slip.mean))
 			{
-				mSlip += sequence.parameters.slip.next();
+				mSlip += probabilities[i].slip.next(random);
 				++sCount;
 			}
 		}
@@ -307,11 +300,11 @@ public class Main
 		// sigma(P(G)), sigma(P(S))
 		// double sTransition = 0;
 		double sGuess = 0, sSlip = 0;
-		for (Sequence sequence : learningSet)
+		for (KTParameters parameters : probabilities)
 		{
-			// if (!Double.isNaN(sequence.parameters.transition)) sTransition += Math.pow(sequence.parameters.transition - mTransition, 2);
-			if (!Double.isNaN(sequence.parameters.guess.mean)) sGuess += Math.pow(sequence.parameters.guess.mean - mGuess, 2);
-			if (!Double.isNaN(sequence.parameters.slip.mean)) sSlip += Math.pow(sequence.parameters.slip.mean - mSlip, 2);
+			// if (!Double.isNaN(parameters.transition)) sTransition += Math.pow(parameters.transition - mTransition, 2);
+			if (!Double.isNaN(parameters.guess.mean)) sGuess += Math.pow(parameters.guess.mean - mGuess, 2);
+			if (!Double.isNaN(parameters.slip.mean)) sSlip += Math.pow(parameters.slip.mean - mSlip, 2);
 		}
 		// sTransition = Math.sqrt(sTransition / tSize);
 		sGuess = Math.sqrt(sGuess / gCount);
@@ -343,10 +336,10 @@ public class Main
 					if (aggregated && problem.aggregatedKnowledge == null) continue;
 
 					if (threshold == -1) precision += Math.pow(sequence.finalProblem().expectedKnowledge
-							- (aggregated ? problem.aggregatedKnowledge : problem.knowledge).mean, 2)
+							- (aggregated ? problem.aggregatedKnowledge.mean : problem.knowledgeMean), 2)
 							/ problems;
 					else precision += Math.pow(sequence.finalProblem().expectedKnowledge
-							- ((aggregated ? problem.aggregatedKnowledge : problem.knowledge).mean >= threshold ? 1 : 0), 2)
+							- ((aggregated ? problem.aggregatedKnowledge.mean : problem.knowledgeMean) >= threshold ? 1 : 0), 2)
 							/ problems;
 				}
 		}
@@ -360,83 +353,74 @@ public class Main
 	private static boolean computeScores()
 	{
 		log("Calculating scores...");
-		ScriptEngine script = new ScriptEngineManager().getEngineByName("nashorn");
-		File file = null;
-		if (settings.getProperty("aggregation_type").equals("script")) file = new File(settings.getProperty("aggregation_value"));
-
-		double[] scores = new double[metrics.size()];
-		for (Sequence sequence : allSequences)
+		double[] scores = new double[store.size];
+		try
 		{
-			for (Problem problem : sequence.problems)
-			{
-				if (file == null)
-				{
-					problem.score = aggregationBase;
-					// if (allSequences.indexOf(sequence) <= 10 && d == 0) log();
-					for (Metric metric : metrics)
-						problem.score += metric.weight * problem.metricScores.get(metric);
-
-				} else try
-				{
-					for (int m = 0; m < metrics.size(); ++m)
-						scores[m] = problem.metricScores.get(metrics.get(m));
-
-					// Input: double[] containing scores for each metric for a single problem.
-					// Output: aggregated score as a double.
-					script.put("metrics", scores);
-					script.eval(new BufferedReader(new FileReader(file)));
-					problem.score = (double) script.get("aggregated");
-				} catch (FileNotFoundException e)
-				{
-					log("Couldn't find aggregation script: " + settings.getProperty("aggregation_script"));
-					return false;
-				} catch (Exception e)
-				{
-					log("Error while aggregating metrics:\n" + e.getMessage());
-					return false;
-				}
-			}
-
+			aggregation.aggregate(store.scores, 0, store.size, scores);
+		} catch (Exception e)
+		{
+			log(Log.ERROR, "Error while aggregating metrics:\n" + e.getMessage());
+			return false;
 		}
 
+		for (Sequence sequence : allSequences)
+			for (Problem problem : sequence.problems)
+				problem.score = scores[problem.ordinal];
 		return true;
 	}
 
-	/** Computes statistics for the parameters. */
+	/** Computes the mean and deviation of the parameters of the steps, in the two extra slots of the input array. */
 	private static void computeStats(KTParameters[] parametersArray)
 	{
-		// Mean
+		// Mean over the steps: the two extra slots aren't parameters of a step.
 		double start = 0, transition = 0, guess = 0, slip = 0;
-		for (int i = 0; i < parametersArray.length - 2; ++i)
+		for (int i = 0; i < validations; ++i)
 		{
 			start += parametersArray[i].startKnowledge;
 			transition += parametersArray[i].transition;
 			guess += parametersArray[i].guess.mean;
 			slip += parametersArray[i].slip.mean;
 		}
-		start /= parametersArray.length;
-		transition /= parametersArray.length;
-		guess /= parametersArray.length;
-		slip /= parametersArray.length;
+		start /= validations;
+		transition /= validations;
+		guess /= validations;
+		slip /= validations;
 
 		// Variation
 		double sStart = 0, sTransition = 0, sGuess = 0, sSlip = 0;
-		for (int i = 0; i < parametersArray.length - 2; ++i)
+		for (int i = 0; i < validations; ++i)
 		{
 			sStart += Math.pow(parametersArray[i].startKnowledge - start, 2);
 			sTransition += Math.pow(parametersArray[i].transition - transition, 2);
 			sGuess += Math.pow(parametersArray[i].guess.mean, 2) + Math.pow(parametersArray[i].guess.variation, 2);
 			sSlip += Math.pow(parametersArray[i].slip.mean, 2) + Math.pow(parametersArray[i].slip.variation, 2);
 		}
-		sStart = Math.sqrt(sStart / parametersArray.length);
-		sTransition = Math.sqrt(sTransition / parametersArray.length);
-		sGuess = Math.sqrt(sGuess / parametersArray.length - Math.pow(guess, 2));
-		sSlip = Math.sqrt(sSlip / parametersArray.length - Math.pow(slip, 2));
+		sStart = Math.sqrt(sStart / validations);
+		sTransition = Math.sqrt(sTransition / validations);
+		sGuess = Math.sqrt(sGuess / validations - Math.pow(guess, 2));
+		sSlip = Math.sqrt(sSlip / validations - Math.pow(slip, 2));
 
 		parametersArray[validations] = new KTParameters(start, transition, new Gaussian(guess, sGuess), new Gaussian(slip, sSlip));
 		parametersArray[validations + 1] = new KTParameters(sStart, sTransition, null, null);
 	}
 
+	/** Sets the number of Sequences tested by each step of cross validation, and the number of steps.
+	 * 
+	 * @return true if it succeeded. */
+	private static boolean computeValidations()
+	{
+		try
+		{
+			testingSize = (int) Math.ceil(allSequences.size() * Double.parseDouble(settings.getProperty("cross_validation")));
+		} catch (Exception e)
+		{
+			log(Log.ERROR, "Incorrect value for cross validation: " + settings.getProperty("cross_validation"));
+			return false;
+		}
+		validations = model == null ? (int) Math.ceil(allSequences.size() * 1. / testingSize) : model.validations();
+		return true;
+	}
+
 	/** @param aggregated - If true, will compute the variation for the aggregated Knowledge.
 	 * @return The variation for the final Knowledge for the input sequences. */
 	private static double computeVariation(ArrayList<Sequence> sequences, boolean aggregated)
@@ -452,7 +436,7 @@ public class Main
 				{
 					if (problems == -1) problems = sequence.problems.size() - sequence.problems.indexOf(problem);
 					if (aggregated && problem.aggregatedKnowledge == null) continue;
-					variation += (aggregated ? sequence.finalProblem().aggregatedKnowledge : sequence.finalProblem().knowledge).variation / problems;
+					variation += (aggregated ? sequence.finalProblem().aggregatedKnowledge.variation : sequence.finalProblem().knowledgeVariation) / problems;
 				}
 		}
 
@@ -468,7 +452,7 @@ public class Main
 			if (inputMetrics.equals("")) return true;
 			String[] m = inputMetrics.split(",");
 			for (String metric : m)
-				metrics.add(new Metric(metric));
+				metrics.add(new Metric(metric, metrics.size()));
 
 			if (inputWeight != null)
 			{
@@ -480,97 +464,76 @@ public class Main
 				aggregationBase = Utils.parseDouble(w[w.length - 1]);
 			}
 
-			if (inputThreshold != null)
-			{
-				if (!inputThreshold.startsWith("["))
-				{
-					double t = Double.parseDouble(inputThreshold);
-					for (Metric metric : metrics)
-					{
-						metric.threshold = t;
-						metric.thresholdReversed = metric.weight < 0;
-					}
-				} else
-				{
-					inputThreshold = inputThreshold.substring(1, inputThreshold.length() - 1).replaceAll(" ", "");
-					if (inputThreshold.equals("")) return true;
-					String[] t = inputThreshold.split(",");
-					for (int i = 0; i < t.length; ++i)
-					{
-						if (t[i].startsWith("<")) metrics.get(i).thresholdReversed = true;
-						if (t[i].startsWith("<") || t[i].startsWith(">")) t[i] = t[i].substring(1);
-						metrics.get(i).threshold = Utils.parseDouble(t[i]);
-					}
-				}
-			}
+			if (inputThreshold != null) readThresholds(inputThreshold);
 
 			return true;
 		} catch (Exception e)
 		{
-			log("Error while reading metrics: " + e.getMessage());
+			log(Log.ERROR, "Error while reading metrics: " + e.getMessage());
 			e.printStackTrace();
 			return false;
 		}
 	}
 
-	/** Reads the input files and creates the corresponding Sequences.
+	/** Reads the input files and creates the corresponding Sequences. Records are parsed on {@link Main#pool} by batches of
+	 * {@link ProblemStore.Builder#BLOCK}, while the next ones are read.
 	 * 
 	 * @param set - The set to store the Sequences in.
 	 * @param input - The input file with the data.
 	 * @return true if it succeeded. */
-	private static boolean createSequences(ArrayList<Sequence> set, File input)
+	static boolean createSequences(ArrayList<Sequence> set, File input)
 	{
 		set.clear();
 		log("Reading input file: " + input.getName());
 
-		int sequenceID = -1, problemID = -1, expectedKnowledge = -1, order = -1, correctness = -1, score = -1;
-		HashMap<Metric, Integer> metricIndex = new HashMap<Metric, Integer>();
+		// sequence, problem, expected_knowledge, order, correctness, score
+		final int[] columns = new int[]
+		{ -1, -1, -1, -1, -1, -1 };
+		final int[] metricColumns = new int[metrics.size()];
+		final ProblemStore.Builder builder = new ProblemStore.Builder(metrics.size());
+		final SequenceRegistry registry = new SequenceRegistry();
+		// Batches being parsed, oldest first. Their records stay in memory until they are joined.
+		ArrayDeque<ForkJoinTask<?>> tasks = new ArrayDeque<ForkJoinTask<?>>();
 		try
 		{
 			CSVParser parser = CSVParser.parse(input, Charset.defaultCharset(), CSVFormat.DEFAULT);
+			try
+			{
+				Iterator<CSVRecord> records = parser.iterator();
+				if (records.hasNext() && !readHeader(records.next(), columns, metricColumns)) return false;
 
-			for (CSVRecord record : parser)
-				if (parser.getCurrentLineNumber() == 1)
+				int first = 0;
+				while (records.hasNext())
 				{
-					for (int i = 0; i < record.size(); ++i)
+					final ArrayList<CSVRecord> batch = new ArrayList<CSVRecord>(ProblemStore.Builder.BLOCK);
+					while (batch.size() < ProblemStore.Builder.BLOCK && records.hasNext())
+						batch.add(records.next());
+					final int row = first;
+					tasks.add(pool.submit(new Runnable()
 					{
-						if (record.get(i).equals("sequence")) sequenceID = i;
-						else if (record.get(i).equals("problem")) problemID = i;
-						else if (record.get(i).equals("expected_knowledge")) expectedKnowledge = i;
-						else if (record.get(i).equals("order")) order = i;
-						else if (record.get(i).equals("correctness")) correctness = i;
-						else if (record.get(i).equals("score")) score = i;
-						for (Metric metric : metrics)
-							if (record.get(i).equals(metric.name)) metricIndex.put(metric, i);
-					}
-					for (Metric metric : metrics)
-						if (!metricIndex.containsKey(metric))
+						@Override
+						public void run()
 						{
-							System.out.println("Metric couldn't be found in input file: " + metric.name);
-							return false;
+							parseRecords(batch, row, columns, metricColumns, builder, registry);
 						}
-				} else try
-				{
-					Sequence sequence = findSequence(set, record.get(sequenceID));
-					Problem p = order == -1 ? new Problem(record.get(problemID)) : new Problem(record.get(problemID), Integer.parseInt(record.get(order)));
-					p.expectedKnowledge = Utils.parseDouble(record.get(expectedKnowledge));
-					p.isCorrect = correctness == -1 ? false : record.get(correctness).equals("1");
-					p.score = score == -1 ? 0 : Utils.parseDouble(record.get(score));
-					for (Metric metric : metrics)
-						p.metricScores.put(metric, Utils.parseDouble(record.get(metricIndex.get(metric))));
-					sequence.problems.add(p);
-				} catch (NumberFormatException e)
-				{
-					log("Error reading problem " + record.get(1) + ": " + e.getMessage());
-					e.printStackTrace();
+					}));
+					first += batch.size();
+					// Reading doesn't get ahead of parsing by more than two batches per thread.
+					if (tasks.size() > 2 * pool.getParallelism()) tasks.poll().join();
 				}
+			} finally
+			{
+				parser.close();
+			}
 		} catch (IOException e)
 		{
-			log("Error reading input file: " + e.getMessage());
+			log(Log.ERROR, "Error reading input file: " + e.getMessage());
 		}
 
-		for (Sequence sequence : set)
-			sequence.problems.sort(Comparator.naturalOrder());
+		while (!tasks.isEmpty())
+			tasks.poll().join();
+		set.addAll(registry.sequences());
+		store = builder.build(set);
 
 		return true;
 	}
@@ -582,13 +545,18 @@ public class Main
 	{
 		try
 		{
-			BufferedWriter bw = new BufferedWriter(new FileWriter(output));
-			CSVPrinter printer = new CSVPrinter(bw, CSVFormat.DEFAULT);
-			printer.printRecords(data);
-			printer.close();
+			CSVWriter writer = new CSVWriter(output);
+			try
+			{
+				for (ArrayList<String> row : data)
+					writer.printRecord(row.toArray(new String[row.size()]));
+			} finally
+			{
+				writer.close();
+			}
 		} catch (IOException e)
 		{
-			log("Error creating output file: " + e.getMessage());
+			log(Log.ERROR, "Error creating output file: " + e.getMessage());
 			// e.printStackTrace();
 		}
 	}
@@ -596,111 +564,216 @@ public class Main
 	private static void exportData(File output, String[][] data)
 	{
 		log("Exporting to " + output.getName() + "...");
-		ArrayList<ArrayList<String>> list = new ArrayList<ArrayList<String>>();
-		for (String[] array : data)
+		try
+		{
+			CSVWriter writer = new CSVWriter(output);
+			try
+			{
+				for (String[] row : data)
+					writer.printRecord(row);
+			} finally
+			{
+				writer.close();
+			}
+		} catch (IOException e)
 		{
-			ArrayList<String> a = new ArrayList<String>();
-			for (String string : array)
-				a.add(string);
-			list.add(a);
+			log(Log.ERROR, "Error creating output file: " + e.getMessage());
 		}
+	}
 
-		exportData(output, list);
+	/** Exports the results to a binary {@link ResultFile}. */
+	private static void exportBinary(File output)
+	{
+		log("Exporting to " + output.getName() + "...");
+		double threshold = settings.getProperty("expected_binary").equals("false") ? -1 : Double.parseDouble(settings.getProperty("expected_binary"));
+		double[] rmse = new double[allSequences.size()];
+		ArrayList<Sequence> s = new ArrayList<Sequence>();
+		for (int i = 0; i < rmse.length; ++i)
+		{
+			s.clear();
+			s.add(allSequences.get(i));
+			rmse[i] = computePrecision(s, false);
+		}
+		try
+		{
+			ResultFile.write(output, allSequences, metrics, store, rmse, threshold);
+		} catch (IOException e)
+		{
+			log(Log.ERROR, "Error creating output file: " + e.getMessage());
+		}
 	}
 
-	/** Determines the Knowledge Sequences for each Sequence. */
-	private static void findKnowledgeSequences()
+	/** Exports the parameters of the run to a {@link Model} file. */
+	private static void exportModel(File output)
 	{
-		for (Sequence sequence : allSequences)
-			sequence.findKnowledgeSequence();
+		log("Exporting to " + output.getName() + "...");
+		Model trained = new Model(metrics);
+		trained.aggregationBase = aggregationBase;
+		trained.mainParameters = mainParameters;
+		trained.expectedParameters = expectedParameters;
+		for (Metric metric : metrics)
+			trained.metricParameters[metric.index] = metricParameters[metric.index];
+		try
+		{
+			trained.write(output);
+		} catch (IOException e)
+		{
+			log(Log.ERROR, "Error creating output file: " + e.getMessage());
+		}
 	}
 
-	/** Determines which Problems should be used to compute Precision. */
-	private static void findRepresentativeProblems()
+	/** Exports the Knowledge associated with each problem for each metric, row by row. */
+	private static void exportMetrics(File output)
 	{
-		for (Sequence sequence : allSequences)
+		log("Exporting to " + output.getName() + "...");
+		try
 		{
-			if (settings.getProperty("smooth_rmse").equals("true"))
+			CSVWriter writer = new CSVWriter(output);
+			try
 			{
-				Problem best = sequence.finalProblem();
-				// Find problem with smallest distance to expected
-				for (Problem p : sequence.problems)
-					if (Math.abs(p.expectedKnowledge - p.knowledge.mean) < Math.abs(best.expectedKnowledge - best.knowledge.mean)) best = p;
-
-				// Use it and all problems after
-				for (int i = sequence.problems.indexOf(best); i < sequence.problems.size(); ++i)
-					sequence.problems.get(i).isRepresentative = true;
-			} else sequence.finalProblem().isRepresentative = true;
+				writer.printRecord("sequence", "problem", "metric", "input", "learned");
+				for (Sequence sequence : allSequences)
+					for (Problem problem : sequence.problems)
+						for (Metric metric : metrics)
+						{
+							writer.print(sequence.name);
+							writer.print(problem.name);
+							writer.print(metric.name);
+							writer.print(metric.initialDistribution.unreduce(store.scores[metric.index][problem.ordinal]));
+							writer.print(metric.initialDistribution.unreduce(store.knowledgeMean[metric.index][problem.ordinal]));
+							writer.println();
+						}
+			} finally
+			{
+				writer.close();
+			}
+		} catch (IOException e)
+		{
+			log(Log.ERROR, "Error creating output file: " + e.getMessage());
 		}
 	}
 
-	/** @return The Sequence matching the input ID. Creates a new one if doesn't exist. */
-	private static Sequence findSequence(ArrayList<Sequence> set, String id)
+	/** Exports the Knowledge associated with each problem, row by row. */
+	private static void exportProblems(File output)
 	{
-		for (Sequence sequence : set)
-			if (sequence.name.equals(id)) return sequence;
-		Sequence s = new Sequence(id);
-		set.add(s);
-		return s;
+		log("Exporting to " + output.getName() + "...");
+		double threshold = settings.getProperty("expected_binary").equals("false") ? -1 : Double.parseDouble(settings.getProperty("expected_binary"));
+		ArrayList<Sequence> s = new ArrayList<Sequence>();
+		try
+		{
+			CSVWriter writer = new CSVWriter(output);
+			try
+			{
+				writer.printRecord(PROBLEMS_HEADER);
+				for (Sequence sequence : allSequences)
+				{
+					s.clear();
+					s.add(sequence);
+					double rmse = computePrecision(s, false);
+					for (Problem problem : sequence.problems)
+						printProblem(writer, sequence, problem, rmse, threshold);
+				}
+			} finally
+			{
+				writer.close();
+			}
+		} catch (IOException e)
+		{
+			log(Log.ERROR, "Error creating output file: " + e.getMessage());
+		}
 	}
 
-	/** Applies Knowledge Tracing on the expected score to find the Expected Knowledge. */
-	private static void knowledgeTracingOnExpected()
+	/** Determines the Knowledge Sequences for each Sequence. */
+	private static void findKnowledgeSequences(ArrayList<Sequence> sequences)
 	{
-		// Stores the real sequences while applying on expected.
-		ArrayList<Sequence> sequences = new ArrayList<Sequence>();
-		sequences.addAll(allSequences);
-		allSequences.clear();
+		for (Sequence sequence : sequences)
+			sequence.findKnowledgeSequence();
+	}
 
-		// Stores the real parameters while applying on expected.
-		KTParameters[] params = mainParameters;
+	/** Determines which Problems should be used to compute Precision. */
+	private static void findRepresentativeProblems()
+	{
+		for (Sequence sequence : allSequences)
+			findRepresentativeProblems(sequence);
+	}
 
-		for (Sequence sequence : sequences)
-			allSequences.add(sequence.asExpected());
+	/** Determines which Problems of the input Sequence should be used to compute Precision. */
+	private static void findRepresentativeProblems(Sequence sequence)
+	{
+		if (settings.getProperty("smooth_rmse").equals("true"))
+		{
+			Problem best = sequence.finalProblem();
+			// Find problem with smallest distance to expected
+			for (Problem p : sequence.problems)
+				if (Math.abs(p.expectedKnowledge - p.knowledgeMean) < Math.abs(best.expectedKnowledge - best.knowledgeMean)) best = p;
+
+			// Use it and all problems after
+			for (int i = sequence.problems.indexOf(best); i < sequence.problems.size(); ++i)
+				sequence.problems.get(i).isRepresentative = true;
+		} else sequence.finalProblem().isRepresentative = true;
+	}
 
-		applyKnowledgeTracing(null);
-		for (int seq = 0; seq < sequences.size(); ++seq)
-			for (int prob = 0; prob < sequences.get(seq).problems.size(); ++prob)
-				sequences.get(seq).problems.get(prob).expectedKnowledge = allSequences.get(seq).problems.get(prob).knowledge.mean;
+	/** Applies Knowledge Tracing on the expected score to find the Expected Knowledge.
+	 * 
+	 * @return The Knowledge on expected scores of each Problem, by ordinal. Use {@link Main#setExpectedKnowledge(double[])} to store it. */
+	private static double[] knowledgeTracingOnExpected()
+	{
+		ArrayList<Sequence> expected = new ArrayList<Sequence>();
+		for (Sequence sequence : allSequences)
+			expected.add(sequence.asExpected());
 
-		allSequences.clear();
-		allSequences.addAll(sequences);
-		mainParameters = params;
+		expectedParameters = applyKnowledgeTracing(expected, null, model == null ? null : model.expectedParameters, RandomSource.derive(seed,
+				SEED_EXPECTED));
+		double[] knowledge = new double[store.size];
+		for (Sequence sequence : expected)
+			for (Problem problem : sequence.problems)
+				knowledge[problem.ordinal] = problem.knowledgeMean;
+		return knowledge;
 	}
 
+	/** Logs an information message, see {@link Log}. */
 	public static void log(String text)
 	{
-		System.out.println(text);
-		log.add(text);
+		Log.write(Log.INFO, null, text);
+	}
+
+	/** Logs a message with the input level, see {@link Log}. */
+	public static void log(byte level, String text)
+	{
+		Log.write(level, null, text);
 	}
 
 	public static void main(String[] args)
 	{
+		try
+		{
+			Log.start(new File("log.txt"));
+		} catch (IOException e)
+		{
+			System.out.println("Error creating log file, messages are only printed: " + e.getMessage());
+		}
 		try
 		{
 			mainMethod(args.length != 0 ? args[0] : "settings.properties");
 		} catch (Exception e)
 		{
-			log("Error: " + e.getMessage());
+			log(Log.ERROR, "Error: " + e.getMessage());
 			e.printStackTrace();
 		}
-
-		File f = new File("log.txt");
-		try
+		Telemetry.stopProgress();
+		if (settings != null && settings.containsKey("output_report")) try
 		{
-			BufferedWriter w = new BufferedWriter(new FileWriter(f));
-			for (String string : log)
-				w.write(string + "\n");
-			w.close();
+			Telemetry.report(new File(settings.getProperty("output_report")));
 		} catch (IOException e)
 		{
-			e.printStackTrace();
+			log(Log.ERROR, "Error writing report: " + e.getMessage());
 		}
+		Log.close();
 	}
 
 	private static void mainMethod(String propertiesPath)
 	{
-
+		Telemetry.begin();
 		try
 		{
 			settings = new Properties();
@@ -710,12 +783,34 @@ public class Main
 					"output_params", "output_sequences", "scores", "smooth_rmse", "split" })
 				if (!settings.containsKey(property))
 				{
-					log("Missing setting: " + property);
+					log(Log.ERROR, "Missing setting: " + property);
 					return;
 				}
 		} catch (IOException e)
 		{
-			log("Error reading settings file: " + e.getMessage());
+			log(Log.ERROR, "Error reading settings file: " + e.getMessage());
+			return;
+		}
+
+		if (settings.containsKey("log_level"))
+		{
+			byte level = Log.level(settings.getProperty("log_level"));
+			if (level == -1)
+			{
+				log(Log.ERROR, "Incorrect value for log level: " + settings.getProperty("log_level"));
+				return;
+			}
+			Log.setLevel(level);
+		}
+
+		// Answers use the standard output: the log goes to the error output.
+		if (settings.getProperty("server", "").equals("stdin")) System.setOut(System.err);
+		if (settings.containsKey("progress")) try
+		{
+			Telemetry.startProgress(Long.parseLong(settings.getProperty("progress")));
+		} catch (IllegalArgumentException e)
+		{
+			log(Log.ERROR, "Incorrect value for progress: " + settings.getProperty("progress"));
 			return;
 		}
 
@@ -723,103 +818,979 @@ public class Main
 				settings.getProperty("aggregation_type").equals("weights") ? settings.getProperty("aggregation_value") : null,
 				settings.getProperty("metric_threshold"))) return;
 
-		File sequences = new File(settings.getProperty("input_file"));
-		if (!sequences.exists())
+		if (settings.containsKey("model")) try
 		{
-			log("Input file doesn't exist: " + settings.getProperty("input_file"));
+			model = Model.read(new File(settings.getProperty("model")));
+			model.apply(metrics);
+			aggregationBase = model.aggregationBase;
+			log("Scoring with model " + settings.getProperty("model") + ", trained with " + model.validations() + " steps of cross validation");
+		} catch (IOException | IllegalArgumentException e)
+		{
+			log(Log.ERROR, "Error reading model: " + e.getMessage());
 			return;
 		}
 
-		allSequences = new ArrayList<Sequence>();
-		testingSet = new ArrayList<Sequence>();
-		learningSet = new ArrayList<Sequence>();
-		if (!createSequences(allSequences, sequences)) return;
-		if (settings.getProperty("scores").equals("compute")) computeScores();
-		cleanSequences(settings.getProperty("scores").equals("compute") || settings.getProperty("scores").equals("reduce"),
-				Boolean.parseBoolean(settings.getProperty("center_metrics")));
+		if (settings.getProperty("aggregation_type").equals("script"))
+		{
+			String script = Utils.readTextFile(settings.getProperty("aggregation_value"));
+			if (script == null)
+			{
+				log(Log.ERROR, "Couldn't find aggregation script: " + settings.getProperty("aggregation_value"));
+				return;
+			}
+			try
+			{
+				aggregation = AggregationFunction.compile(script, metrics);
+			} catch (IllegalArgumentException e)
+			{
+				log(Log.ERROR, "Error while compiling aggregation script: " + e.getMessage());
+				return;
+			}
+		} else aggregation = new AggregationFunction.Weighted(aggregationBase, metrics);
 
-		if (!settings.getProperty("correctness").equals("true")) try
+		try
 		{
-			log("Applying threshold: " + settings.getProperty("correctness"));
-			applyThreshold(Double.parseDouble(settings.getProperty("correctness")));
+			pool = new ForkJoinPool(Integer.parseInt(settings.getProperty("threads", Integer.toString(Runtime.getRuntime().availableProcessors()))));
 		} catch (Exception e)
 		{
-			log("Incorrect value for score threshold: " + settings.getProperty("correctness"));
+			log(Log.ERROR, "Incorrect value for threads: " + settings.getProperty("threads"));
 			return;
 		}
 
-		if (!settings.getProperty("split").equals("false")) try
+		try
+		{
+			shards = Integer.parseInt(settings.getProperty("shards", "0"));
+			if (shards < 0) throw new NumberFormatException();
+		} catch (NumberFormatException e)
+		{
+			log(Log.ERROR, "Incorrect value for shards: " + settings.getProperty("shards"));
+			return;
+		}
+
+		try
 		{
-			log("Splitting sequences...");
-			ExplorationSplitter.splitSequences(Integer.parseInt(settings.getProperty("split")));
+			seed = settings.containsKey("seed") ? Long.parseLong(settings.getProperty("seed")) : new Random().nextLong();
+			log("Seed: " + seed);
 		} catch (Exception e)
 		{
-			log("Incorrect value for max noise: " + settings.getProperty("split"));
+			log(Log.ERROR, "Incorrect value for seed: " + settings.getProperty("seed"));
 			return;
 		}
 
-		int s = 0;
+		Sequence.engine = KnowledgeEngine.forName(settings.getProperty("knowledge_engine", "sampling"));
+		if (Sequence.engine == null)
+		{
+			log(Log.ERROR, "Incorrect value for knowledge engine: " + settings.getProperty("knowledge_engine"));
+			return;
+		}
+
+		if (settings.containsKey("server"))
+		{
+			serve();
+			return;
+		}
+
+		File sequences = new File(settings.getProperty("input_file"));
+		if (!sequences.exists())
+		{
+			log(Log.ERROR, "Input file doesn't exist: " + settings.getProperty("input_file"));
+			return;
+		}
+
+		if (settings.containsKey("stream_parameters") || Boolean.parseBoolean(settings.getProperty("stream")))
+		{
+			if (streamSequences(sequences)) log("Done!");
+			return;
+		}
+
+		if (settings.containsKey("sweep"))
+		{
+			if (sweep(sequences)) log("Done!");
+			return;
+		}
+
+		Checkpoint checkpoint = null;
+		byte resumed = Checkpoint.NONE;
+		if (settings.containsKey("checkpoints")) try
+		{
+			checkpoint = new Checkpoint(new File(settings.getProperty("checkpoints")), sequences, settings);
+			resumed = checkpoint.restore();
+		} catch (IOException e)
+		{
+			log(Log.WARNING, "Error reading input file, checkpoints disabled: " + e.getMessage());
+		}
+
+		if (resumed < Checkpoint.INPUT)
+		{
+			if (!readSequences(sequences) || !prepareSequences()) return;
+			if (checkpoint != null) checkpoint.write(Checkpoint.INPUT, null);
+		}
+
+		int s = 0;
 		for (Sequence sequence : allSequences)
 			if (sequence.problems.get(0).isCorrect) ++s;
-		System.out.println(s * 1. / allSequences.size());
+		log(Log.DEBUG, "Correct first problems: " + s * 1. / allSequences.size());
 
 		s = 0;
 		for (Sequence sequence : allSequences)
 			for (Problem problem : sequence.problems)
 				if (problem.isCorrect) ++s;
-		System.out.println(s * 1. / totalProblems);
+		log(Log.DEBUG, "Correct problems: " + s * 1. / totalProblems);
+
+		if (!computeValidations()) return;
+
+		runKnowledgeTracing(checkpoint, resumed >= Checkpoint.KNOWLEDGE);
 
+		// Each output file is written on its own thread.
+		TaskGraph exports = new TaskGraph();
+		if (!settings.getProperty("output_params").equals("null")) exports.add("params", new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				exportData(new File(settings.getProperty("output_params")), outputParams());
+			}
+		}, pool);
+		if (!settings.getProperty("output_sequences").equals("null")) exports.add("sequences", new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				exportProblems(new File(settings.getProperty("output_sequences")));
+			}
+		}, pool);
+		if (!settings.getProperty("output_metrics").equals("null")) exports.add("metrics", new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				exportMetrics(new File(settings.getProperty("output_metrics")));
+			}
+		}, pool);
+		if (!settings.getProperty("output_binary", "null").equals("null")) exports.add("binary", new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				exportBinary(new File(settings.getProperty("output_binary")));
+			}
+		}, pool);
+		if (model == null && settings.containsKey("output_model")) exports.add("model", new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				exportModel(new File(settings.getProperty("output_model")));
+			}
+		}, pool);
+		exports.await();
+		log("Done!");
+	}
+
+	/** Creates the Problem of an input record, and writes its metric scores in <code>scores</code> from <code>offset</code>.
+	 * 
+	 * @param columns - The columns of sequence, problem, expected_knowledge, order, correctness and score, -1 if missing.
+	 * @param metricColumns - The column of each metric.
+	 * @throws NumberFormatException If a value isn't a number. */
+	private static Problem parseProblem(CSVRecord record, int[] columns, int[] metricColumns, double[] scores, int offset)
+	{
+		Problem p = new Problem(record.get(columns[1]), columns[3] == -1 ? -1 : Integer.parseInt(record.get(columns[3])));
+		p.expectedKnowledge = Utils.parseDouble(record.get(columns[2]));
+		p.isCorrect = columns[4] == -1 ? false : record.get(columns[4]).equals("1");
+		p.score = columns[5] == -1 ? 0 : Utils.parseDouble(record.get(columns[5]));
+		for (int m = 0; m < metricColumns.length; ++m)
+			scores[offset + m] = Utils.parseDouble(record.get(metricColumns[m]));
+		return p;
+	}
+
+	/** Creates the Problems of a batch of input records, and adds them to their Sequence. Safe to call on several batches at the same time.
+	 * 
+	 * @param records - The records, at most {@link ProblemStore.Builder#BLOCK}.
+	 * @param first - The row of the first record. A multiple of {@link ProblemStore.Builder#BLOCK}.
+	 * @param columns - The columns of sequence, problem, expected_knowledge, order, correctness and score, -1 if missing.
+	 * @param metricColumns - The column of each metric. */
+	private static void parseRecords(List<CSVRecord> records, int first, int[] columns, int[] metricColumns, ProblemStore.Builder builder,
+			SequenceRegistry registry)
+	{
+		double[] block = builder.block(first / ProblemStore.Builder.BLOCK);
+		for (int i = 0; i < records.size(); ++i)
+		{
+			CSVRecord record = records.get(i);
+			try
+			{
+				Problem p = parseProblem(record, columns, metricColumns, block, i * metricColumns.length);
+				p.ordinal = first + i;
+				registry.add(record.get(columns[0]), p, p.ordinal);
+			} catch (NumberFormatException e)
+			{
+				log(Log.ERROR, "Error reading problem " + record.get(1) + ": " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Applies the score threshold of the "correctness" setting, then splits the Sequences with the max noise of the "split" setting.
+	 * 
+	 * @return true if it succeeded. */
+	private static boolean prepareSequences()
+	{
+		Telemetry.Timer timer = Telemetry.start("prepare");
 		try
 		{
-			testingSize = (int) Math.ceil(allSequences.size() * Double.parseDouble(settings.getProperty("cross_validation")));
-		} catch (Exception e)
+			if (!settings.getProperty("correctness").equals("true")) try
+			{
+				log("Applying threshold: " + settings.getProperty("correctness"));
+				applyThreshold(allSequences, Double.parseDouble(settings.getProperty("correctness")));
+			} catch (Exception e)
+			{
+				log(Log.ERROR, "Incorrect value for score threshold: " + settings.getProperty("correctness"));
+				return false;
+			}
+
+			if (!settings.getProperty("split").equals("false")) try
+			{
+				log("Splitting sequences...");
+				ArrayList<Sequence> split = ExplorationSplitter.splitSequences(allSequences, Integer.parseInt(settings.getProperty("split")));
+				allSequences.clear();
+				allSequences.addAll(split);
+				cleanSequences(false, false);
+			} catch (Exception e)
+			{
+				log(Log.ERROR, "Incorrect value for max noise: " + settings.getProperty("split"));
+				return false;
+			}
+			return true;
+		} finally
 		{
-			log("Incorrect value for cross validation: " + settings.getProperty("cross_validation"));
-			return;
+			timer.stop();
 		}
-		validations = (int) Math.ceil(allSequences.size() * 1. / testingSize);
+	}
 
-		applyKnowledgeTracing(null);
+	/** Prints the row of the output Sequences file for the input Problem. */
+	private static void printProblem(CSVWriter writer, Sequence sequence, Problem problem, double rmse, double threshold) throws IOException
+	{
+		writer.print(sequence.name);
+		writer.print(problem.name);
+		writer.print(problem.knowledgeMean);
+		writer.print(problem.knowledgeVariation);
+		if (problem.aggregatedKnowledge == null)
+		{
+			writer.print("N/A");
+			writer.print("N/A");
+		} else
+		{
+			writer.print(problem.aggregatedKnowledge.mean);
+			writer.print(problem.aggregatedKnowledge.variation);
+		}
+		writer.print(problem.knowledgeMean > threshold ? "1" : "0");
+		writer.print(problem.aggregatedKnowledge == null ? "N/A" : problem.aggregatedKnowledge.mean > threshold ? "1" : "0");
+		writer.print(problem.expectedKnowledge);
+		writer.print(rmse);
+		writer.println();
+	}
+
+	/** Finds the columns of the input file from its header.
+	 * 
+	 * @param columns - Set to the columns of sequence, problem, expected_knowledge, order, correctness and score, -1 if missing.
+	 * @param metricColumns - Set to the column of each metric.
+	 * @return true if all metrics were found. */
+	private static boolean readHeader(CSVRecord header, int[] columns, int[] metricColumns)
+	{
+		HashMap<Metric, Integer> metricIndex = new HashMap<Metric, Integer>();
+		for (int i = 0; i < header.size(); ++i)
+		{
+			if (header.get(i).equals("sequence")) columns[0] = i;
+			else if (header.get(i).equals("problem")) columns[1] = i;
+			else if (header.get(i).equals("expected_knowledge")) columns[2] = i;
+			else if (header.get(i).equals("order")) columns[3] = i;
+			else if (header.get(i).equals("correctness")) columns[4] = i;
+			else if (header.get(i).equals("score")) columns[5] = i;
+			for (Metric metric : metrics)
+				if (header.get(i).equals(metric.name)) metricIndex.put(metric, i);
+		}
 		for (Metric metric : metrics)
-			applyKnowledgeTracing(metric);
+		{
+			if (!metricIndex.containsKey(metric))
+			{
+				log(Log.ERROR, "Metric couldn't be found in input file: " + metric.name);
+				return false;
+			}
+			metricColumns[metric.index] = metricIndex.get(metric);
+		}
+		return true;
+	}
 
-		findRepresentativeProblems();
+	/** Reads the parameters output by a previous run, see {@link Main#outputParams()}.
+	 * 
+	 * @return The parameters, null if they couldn't be read. */
+	private static KTParameters readParameters(File input)
+	{
+		HashMap<String, Double> values = new HashMap<String, Double>();
+		try
+		{
+			CSVParser parser = CSVParser.parse(input, Charset.defaultCharset(), CSVFormat.DEFAULT);
+			try
+			{
+				for (CSVRecord record : parser)
+					if (parser.getCurrentLineNumber() != 1) values.put(record.get(0), Utils.parseDouble(record.get(1)));
+			} finally
+			{
+				parser.close();
+			}
+		} catch (IOException | NumberFormatException e)
+		{
+			log(Log.ERROR, "Error reading parameters file: " + e.getMessage());
+			return null;
+		}
 
-		if (metrics.size() != 0) aggregateMetrics();
+		String[] names = new String[]
+		{ "P(L0)", "P(T)", "mean(P(G))", "variation(P(G))", "mean(P((S))", "variation(P(S))" };
+		for (String name : names)
+			if (!values.containsKey(name))
+			{
+				log(Log.ERROR, "Missing parameter in " + input.getName() + ": " + name);
+				return null;
+			}
+		return new KTParameters(values.get(names[0]), values.get(names[1]), new Gaussian(values.get(names[2]), values.get(names[3])), new Gaussian(
+				values.get(names[4]), values.get(names[5])));
+	}
 
-		knowledgeTracingOnExpected();
+	/** Reads the input file into {@link Main#allSequences}, computes the scores if needed, then cleans the Sequences.
+	 * 
+	 * @return true if it succeeded. */
+	private static boolean readSequences(File input)
+	{
+		Telemetry.Timer timer = Telemetry.start("read");
+		try
+		{
+			allSequences = new ArrayList<Sequence>();
+			if (!createSequences(allSequences, input)) return false;
+			if (settings.getProperty("scores").equals("compute")) computeScores();
+			cleanSequences(settings.getProperty("scores").equals("compute") || settings.getProperty("scores").equals("reduce"), model == null
+					&& Boolean.parseBoolean(settings.getProperty("center_metrics")));
+			// Metric scores are reduced as the training data of the model was.
+			if (model != null) for (Metric metric : metrics)
+				for (int p = 0; p < store.size; ++p)
+					store.scores[metric.index][p] = metric.initialDistribution.reduce(store.scores[metric.index][p]);
+			return true;
+		} finally
+		{
+			timer.stop();
+		}
+	}
 
-		if (!settings.getProperty("output_params").equals("null")) exportData(new File(settings.getProperty("output_params")), outputParams());
-		if (!settings.getProperty("output_sequences").equals("null")) exportData(new File(settings.getProperty("output_sequences")), outputProblems());
-		if (!settings.getProperty("output_metrics").equals("null")) exportData(new File(settings.getProperty("output_metrics")), outputMetrics());
-		log("Done!");
+	/** Sets the threshold of each metric from the input setting: a single threshold for all metrics, or a list with a threshold per metric, optionally
+	 * prefixed by "<" if scores should be lower than the threshold, or ">". */
+	private static void readThresholds(String inputThreshold)
+	{
+		if (!inputThreshold.startsWith("["))
+		{
+			double t = Double.parseDouble(inputThreshold);
+			for (Metric metric : metrics)
+			{
+				metric.threshold = t;
+				metric.thresholdReversed = metric.weight < 0;
+			}
+		} else
+		{
+			inputThreshold = inputThreshold.substring(1, inputThreshold.length() - 1).replaceAll(" ", "");
+			if (inputThreshold.equals("")) return;
+			String[] t = inputThreshold.split(",");
+			for (int i = 0; i < t.length; ++i)
+			{
+				if (t[i].startsWith("<")) metrics.get(i).thresholdReversed = true;
+				if (t[i].startsWith("<") || t[i].startsWith(">")) t[i] = t[i].substring(1);
+				metrics.get(i).threshold = Utils.parseDouble(t[i]);
+			}
+		}
 	}
 
-	/** @return The Knowledge associated with each problem. */
-	private static String[][] outputMetrics()
+	/** Executes the passes of Knowledge Tracing, then aggregates the metrics. The passes for each metric and the expected scores don't depend on each other,
+	 * so they run at the same time.
+	 * 
+	 * @param checkpoint - Saves the state before aggregation, null not to.
+	 * @param resumed - True if the passes were restored from a {@link Checkpoint#KNOWLEDGE} snapshot: only aggregates the metrics. */
+	private static void runKnowledgeTracing(final Checkpoint checkpoint, boolean resumed)
 	{
-		String[][] data = new String[totalProblems * metrics.size() + 1][5];
+		TaskGraph graph = new TaskGraph();
+		final double[][] expected = new double[1][];
+		String[] aggregation = new String[0];
+		if (resumed) expected[0] = checkpoint.expectedKnowledge;
+		else
+		{
+			// Main, metric and expected passes compute the Knowledge of every Problem once.
+			Telemetry.expect((long) totalProblems * (metrics.size() + 2));
+			graph.add("main", new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					mainParameters = applyKnowledgeTracing(allSequences, null, model == null ? null : model.mainParameters, RandomSource.derive(seed,
+							SEED_MAIN));
+				}
+			}, pool);
+
+			graph.add("representatives", new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					findRepresentativeProblems();
+				}
+			}, pool, "main");
 
-		data[0][0] = "sequence";
-		data[0][1] = "problem";
-		data[0][2] = "metric";
-		data[0][3] = "input";
-		data[0][4] = "learned";
+			int search = 0;
+			if (model == null && settings.containsKey("threshold_search")) try
+			{
+				search = Integer.parseInt(settings.getProperty("threshold_search"));
+			} catch (NumberFormatException e)
+			{
+				log(Log.ERROR, "Incorrect value for threshold search: " + settings.getProperty("threshold_search"));
+			}
+			final int candidates = search;
 
-		int current = 1;
+			metricParameters = new KTParameters[metrics.size()][];
+			boolean sharded = shards != 0 && model == null;
+			String[] passes = new String[metrics.size() + 1];
+			for (int i = 0; i < metrics.size(); ++i)
+			{
+				final Metric metric = metrics.get(i);
+				passes[i] = "metric " + metric.name;
+				// Sequence#computeKnowledge uses the main Knowledge of the previous Problem for metrics too. The threshold search uses the representative
+				// Problems. Sharded passes run one after another, as each one already runs on all the workers.
+				ArrayList<String> dependencies = new ArrayList<String>();
+				dependencies.add("main");
+				if (candidates > 0) dependencies.add("representatives");
+				if (sharded && i > 0) dependencies.add(passes[i - 1]);
+				graph.add(passes[i], new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						if (candidates > 0) searchThreshold(metric, candidates);
+						metricParameters[metric.index] = applyKnowledgeTracing(allSequences, metric, model == null ? null
+								: model.metricParameters[metric.index], RandomSource.derive(seed, SEED_METRIC, metric.index));
+					}
+				}, pool, dependencies.toArray(new String[dependencies.size()]));
+			}
+
+			graph.add("expected", new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					expected[0] = knowledgeTracingOnExpected();
+				}
+			}, pool, sharded ? new String[]
+			{ metrics.isEmpty() ? "main" : passes[metrics.size() - 1] } : new String[0]);
+
+			passes[metrics.size()] = "representatives";
+			aggregation = passes;
+			if (checkpoint != null)
+			{
+				// The snapshot is taken once all passes are done, before aggregation changes anything.
+				String[] all = Arrays.copyOf(passes, passes.length + 2);
+				all[passes.length] = "main";
+				all[passes.length + 1] = "expected";
+				graph.add("checkpoint", new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						checkpoint.write(Checkpoint.KNOWLEDGE, expected[0]);
+					}
+				}, pool, all);
+				aggregation = new String[]
+				{ "checkpoint" };
+			}
+		}
+
+		graph.add("aggregation", new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (metrics.size() != 0) aggregateMetrics();
+			}
+		}, pool, aggregation);
+
+		// Representative Problems and aggregation use the Expected Knowledge before it is replaced.
+		graph.add("expected knowledge", new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				setExpectedKnowledge(expected[0]);
+			}
+		}, pool, resumed ? new String[]
+		{ "aggregation" } : new String[]
+		{ "expected", "aggregation" });
+
+		graph.await();
+		Telemetry.expect(0);
+	}
+
+	/** Sets the threshold of the input Metric to the candidate with the lowest RMSE, see {@link ThresholdSearch}.
+	 * 
+	 * @param candidates - The number of candidate thresholds. */
+	private static void searchThreshold(Metric metric, int candidates)
+	{
+		log("Searching threshold of metric \"" + metric.name + "\"...");
+		Telemetry.Timer timer = Telemetry.start("threshold " + metric.name);
+		double threshold = settings.getProperty("expected_binary").equals("false") ? -1 : Double.parseDouble(settings.getProperty("expected_binary"));
+		ThresholdSearch search = new ThresholdSearch(allSequences, metric, validations, testingSize, threshold);
+		double[] thresholds = search.candidates(candidates);
+		double[] rmse = search.evaluate(thresholds, RandomSource.derive(seed, SEED_METRIC, metric.index));
+		timer.stop();
+		int best = -1;
+		for (int c = 0; c < rmse.length; ++c)
+			if (!Double.isNaN(rmse[c]) && (best == -1 || rmse[c] < rmse[best])) best = c;
+		if (best == -1)
+		{
+			log(Log.WARNING, "No threshold found for metric \"" + metric.name + "\", keeping " + Utils.toString(metric.threshold));
+			return;
+		}
+		log("Threshold of metric \"" + metric.name + "\": " + Utils.toString(thresholds[best]) + ", RMSE " + Utils.toString(rmse[best]) + " (was "
+				+ Utils.toString(metric.threshold) + ")");
+		metric.threshold = thresholds[best];
+	}
+
+	/** Answers Knowledge requests with the parameters of a previous run, see {@link ScoringServer}. The "server" setting is "stdin" to read requests on
+	 * the standard input and answer on the standard output, or the port to listen to on the loopback interface.<br />
+	 * The parameters come from the "model" setting, see {@link Model}, or from the "server_parameters" parameters file. A parameters file only has the
+	 * main parameters, so metrics need a model. */
+	private static void serve()
+	{
+		boolean svm = settings.getProperty("aggregation_type").equals("svm") || settings.getProperty("aggregation_type").equals("input");
+		OnlineTracer tracer;
+		if (model != null) tracer = new OnlineTracer(model.parameters(), metrics, model.metricParameters(), aggregation, !svm, RandomSource.derive(seed,
+				SEED_MAIN));
+		else
+		{
+			if (!settings.containsKey("server_parameters"))
+			{
+				log(Log.ERROR, "Missing setting: server_parameters");
+				return;
+			}
+			if (metrics.size() != 0)
+			{
+				log(Log.ERROR, "The server needs a model to score metrics, a parameters file only has the main parameters.");
+				return;
+			}
+			KTParameters parameters = readParameters(new File(settings.getProperty("server_parameters")));
+			if (parameters == null) return;
+			tracer = new OnlineTracer(parameters, metrics, new KTParameters[0], aggregation, true, RandomSource.derive(seed, SEED_MAIN));
+		}
+
+		ScoringServer server = new ScoringServer(tracer, metrics.size(), pool.getParallelism());
+		try
+		{
+			if (settings.getProperty("server").equals("stdin"))
+			{
+				server.serve(System.in, new FileOutputStream(FileDescriptor.out));
+				log("Batches, p50, p99 (microseconds): " + server.latencies);
+			} else server.listen(Integer.parseInt(settings.getProperty("server")));
+		} catch (NumberFormatException e)
+		{
+			log(Log.ERROR, "Incorrect value for server: " + settings.getProperty("server"));
+		} catch (IOException e)
+		{
+			log(Log.ERROR, "Server error: " + e.getMessage());
+		}
+	}
+
+	/** Replaces the Expected Knowledge of each Problem with the input Knowledge, by ordinal. */
+	private static void setExpectedKnowledge(double[] knowledge)
+	{
 		for (Sequence sequence : allSequences)
 			for (Problem problem : sequence.problems)
+				problem.expectedKnowledge = knowledge[problem.ordinal];
+	}
+
+	/** Scores a Sequence read by {@link Main#streamSequences(File)}, and writes its rows. The passes use the seeds of the full pipeline, so a Sequence
+	 * gets the same Knowledge as when scoring the whole input with the same parameters.
+	 * 
+	 * @param builder - The scores of the Problems of the Sequence.
+	 * @param parameters - The parameters for main Knowledge.
+	 * @param threshold - The score threshold for correctness, -1 to keep the input correctness.
+	 * @param maxNoise - The max noise to split the Sequence with, -1 not to split it.
+	 * @param draws - Receives the drawn metric Knowledge, see {@link Main#aggregateProblem}.
+	 * @param aggregated - Receives the aggregated values.
+	 * @return The number of Problems written. */
+	private static int streamSequence(Sequence sequence, ProblemStore.Builder builder, KTParameters parameters, double threshold, int maxNoise,
+			double[][] draws, double[] aggregated, CSVWriter writer) throws IOException
+	{
+		if (sequence.problems.size() == 0)
+		{
+			Log.write(Log.WARNING, sequence.name, "Sequence " + sequence.name + " has no problems !");
+			return 0;
+		}
+		sequence.problems.sort(Comparator.naturalOrder());
+		builder.build(Collections.singletonList(sequence));
+		// Metric scores are reduced as the training data of the model was.
+		for (Metric metric : metrics)
+			for (int p = 0; p < sequence.store.size; ++p)
+				sequence.store.scores[metric.index][p] = metric.initialDistribution.reduce(sequence.store.scores[metric.index][p]);
+
+		ArrayList<Sequence> sequences = new ArrayList<Sequence>();
+		sequences.add(sequence);
+		if (threshold != -1) applyThreshold(sequences, threshold);
+		if (maxNoise != -1)
+		{
+			ExplorationSplitter splitter = new ExplorationSplitter(sequence, maxNoise);
+			splitter.doSplit();
+			sequences.clear();
+			sequences.addAll(splitter.split);
+			sequences.sort(Comparator.naturalOrder());
+		}
+
+		int count = 0;
+		double expectedThreshold = settings.getProperty("expected_binary").equals("false") ? -1 : Double.parseDouble(settings.getProperty("expected_binary"));
+		ArrayList<Sequence> s = new ArrayList<Sequence>();
+		boolean unreduce = !settings.getProperty("aggregation_type").equals("svm") && !settings.getProperty("aggregation_type").equals("input");
+		RandomSource random = new RandomSource(0);
+		for (Sequence split : sequences)
+		{
+			split.computeKnowledge(parameters, null, RandomSource.derive(seed, SEED_MAIN));
+			for (Metric metric : metrics)
+				split.computeKnowledge(model.metricParameters[metric.index][model.validations()], metric, RandomSource.derive(seed, SEED_METRIC,
+						metric.index));
+			Sequence expected = null;
+			if (model != null)
+			{
+				expected = split.asExpected();
+				expected.computeKnowledge(model.expectedParameters[model.validations()], null, RandomSource.derive(seed, SEED_EXPECTED));
+			}
+			findRepresentativeProblems(split);
+
+			if (metrics.size() != 0)
+			{
+				random.reset(RandomSource.derive(seed, SEED_AGGREGATION, RandomSource.hash(split.name)));
+				for (Problem problem : split.problems)
+					aggregateProblem(problem, split.store, unreduce, draws, aggregated, random);
+			}
+			// As in the full pipeline, the representative Problems use the expected Knowledge of the input, and the precision the Knowledge on expected
+			// scores.
+			if (expected != null) for (int i = 0; i < split.problems.size(); ++i)
+				split.problems.get(i).expectedKnowledge = expected.problems.get(i).knowledgeMean;
+			s.clear();
+			s.add(split);
+			double rmse = computePrecision(s, false);
+			for (Problem problem : split.problems)
+				printProblem(writer, split, problem, rmse, expectedThreshold);
+			count += split.problems.size();
+		}
+		return count;
+	}
+
+	/** Streaming mode, for input files grouped by Sequence: each Sequence is scored with the parameters of a previous run as soon as its last row is read,
+	 * then written to the output Sequences file and released, so memory doesn't depend on the size of the input. Scores can't be reduced, as it needs
+	 * all Sequences.<br />
+	 * The parameters come from the "model" setting, see {@link Model}, with the metric and aggregated Knowledge; or from the "stream_parameters"
+	 * parameters file, which only has the main parameters, so metrics can't be used.
+	 * 
+	 * @param input - The input file with the data, grouped by Sequence.
+	 * @return true if it succeeded. */
+	private static boolean streamSequences(File input)
+	{
+		if (settings.getProperty("scores").equals("compute") || settings.getProperty("scores").equals("reduce"))
+		{
+			log(Log.ERROR, "Scores can't be reduced when streaming: set scores to input.");
+			return false;
+		}
+		if (settings.getProperty("output_sequences").equals("null"))
+		{
+			log(Log.ERROR, "Streaming needs an output sequences file.");
+			return false;
+		}
+
+		KTParameters parameters;
+		String source;
+		if (model != null)
+		{
+			parameters = model.parameters();
+			source = "model " + new File(settings.getProperty("model")).getName();
+		} else
+		{
+			if (!settings.containsKey("stream_parameters"))
+			{
+				log(Log.ERROR, "Streaming needs a model or a parameters file: set model or stream_parameters.");
+				return false;
+			}
+			if (metrics.size() != 0)
+			{
+				log(Log.ERROR, "Streaming with metrics needs a model, a parameters file only has the main parameters.");
+				return false;
+			}
+			File parametersFile = new File(settings.getProperty("stream_parameters"));
+			parameters = readParameters(parametersFile);
+			if (parameters == null) return false;
+			source = parametersFile.getName();
+		}
+
+		double threshold = -1;
+		if (!settings.getProperty("correctness").equals("true")) try
+		{
+			threshold = Double.parseDouble(settings.getProperty("correctness"));
+		} catch (Exception e)
+		{
+			log(Log.ERROR, "Incorrect value for score threshold: " + settings.getProperty("correctness"));
+			return false;
+		}
+
+		int maxNoise = -1;
+		if (!settings.getProperty("split").equals("false")) try
+		{
+			maxNoise = Integer.parseInt(settings.getProperty("split"));
+		} catch (Exception e)
+		{
+			log(Log.ERROR, "Incorrect value for max noise: " + settings.getProperty("split"));
+			return false;
+		}
+
+		log("Streaming " + input.getName() + " with parameters from " + source + "...");
+		int[] columns = new int[]
+		{ -1, -1, -1, -1, -1, -1 };
+		int[] metricColumns = new int[metrics.size()];
+		double[] row = new double[metrics.size()];
+		HashSet<String> read = new HashSet<String>();
+		Sequence current = null;
+		ProblemStore.Builder builder = null;
+		int problems = 0;
+		double[][] draws = new double[metrics.size()][Sequence.DRAWS];
+		double[] aggregated = new double[Sequence.DRAWS];
+		try
+		{
+			CSVParser parser = CSVParser.parse(input, Charset.defaultCharset(), CSVFormat.DEFAULT);
+			CSVWriter writer = new CSVWriter(new File(settings.getProperty("output_sequences")));
+			try
+			{
+				writer.printRecord(PROBLEMS_HEADER);
+
+				Iterator<CSVRecord> records = parser.iterator();
+				if (records.hasNext() && !readHeader(records.next(), columns, metricColumns)) return false;
+
+				while (records.hasNext())
+				{
+					CSVRecord record = records.next();
+					String name = record.get(columns[0]);
+					if (current == null || !current.name.equals(name))
+					{
+						if (current != null) problems += streamSequence(current, builder, parameters, threshold, maxNoise, draws, aggregated, writer);
+						if (!read.add(name))
+						{
+							log(Log.ERROR, "Input file isn't grouped by sequence: " + name + " found again at line " + parser.getCurrentLineNumber());
+							return false;
+						}
+						current = new Sequence(name);
+						builder = new ProblemStore.Builder(metrics.size());
+					}
+
+					try
+					{
+						Problem p = parseProblem(record, columns, metricColumns, row, 0);
+						p.ordinal = builder.add(row);
+						current.problems.add(p);
+					} catch (NumberFormatException e)
+					{
+						log(Log.ERROR, "Error reading problem " + record.get(1) + ": " + e.getMessage());
+					}
+				}
+				if (current != null) problems += streamSequence(current, builder, parameters, threshold, maxNoise, draws, aggregated, writer);
+			} finally
+			{
+				writer.close();
+				parser.close();
+			}
+		} catch (IOException e)
+		{
+			log(Log.ERROR, "Error while streaming: " + e.getMessage());
+			return false;
+		} catch (IllegalStateException e)
+		{
+			log(Log.ERROR, "Error while aggregating metrics:\n" + e.getMessage());
+			return false;
+		}
+
+		log("Streamed " + read.size() + " sequences, " + problems + " problems.");
+		return true;
+	}
+
+	/** Runs Knowledge Tracing with each configuration of the grid of the "sweep" setting, and writes the parameters and precision found with each
+	 * configuration as a row of the "output_sweep" file. The grid is a properties file: each line is one of {@link Main#SWEEP_SETTINGS} and its values
+	 * separated by "|", and the configurations are all their combinations. The input is read and cleaned once: each configuration works on copies of the
+	 * Problems, and shares the metric scores. Configurations run one after the other, each on the whole {@link Main#pool}.
+	 * 
+	 * @return true if it succeeded. */
+	private static boolean sweep(File input)
+	{
+		if (model != null)
+		{
+			log("A sweep trains the parameters, it can't use a model");
+			return false;
+		}
+
+		Properties grid = new Properties();
+		try
+		{
+			Reader reader = new FileReader(settings.getProperty("sweep"));
+			grid.load(reader);
+			reader.close();
+		} catch (IOException e)
+		{
+			log(Log.ERROR, "Error reading sweep file: " + e.getMessage());
+			return false;
+		}
+
+		String[] names = grid.stringPropertyNames().toArray(new String[0]);
+		Arrays.sort(names);
+		String[][] values = new String[names.length][];
+		int configurations = 1;
+		for (int i = 0; i < names.length; ++i)
+		{
+			if (!Arrays.asList(SWEEP_SETTINGS).contains(names[i]))
+			{
+				log(Log.ERROR, "Setting " + names[i] + " can't be swept, only " + Arrays.toString(SWEEP_SETTINGS));
+				return false;
+			}
+			values[i] = grid.getProperty(names[i]).split("\\|");
+			for (int v = 0; v < values[i].length; ++v)
+				values[i][v] = values[i][v].trim();
+			configurations *= values[i].length;
+		}
+
+		if (!readSequences(input)) return false;
+		Properties base = settings;
+		ArrayList<Sequence> sequences = allSequences;
+		ProblemStore scores = store;
+		// SVM aggregation changes the weights, and scalar thresholds are reversed by weight: each configuration starts from the same metrics.
+		double initialBase = aggregationBase;
+		double[] weights = new double[metrics.size()], thresholds = new double[metrics.size()];
+		boolean[] reversed = new boolean[metrics.size()];
+		for (Metric metric : metrics)
+		{
+			weights[metric.index] = metric.weight;
+			thresholds[metric.index] = metric.initialDistribution.unreduce(metric.threshold);
+			reversed[metric.index] = metric.thresholdReversed;
+		}
+		ArrayList<String[]> rows = new ArrayList<String[]>();
+		for (int c = 0; c < configurations; ++c)
+		{
+			// A copy rather than defaults: containsKey doesn't see defaults.
+			settings = new Properties();
+			settings.putAll(base);
+			String[] row = new String[names.length];
+			for (int i = names.length - 1, rest = c; i >= 0; rest /= values[i].length, --i)
+			{
+				row[i] = values[i][rest % values[i].length];
+				settings.setProperty(names[i], row[i]);
+			}
+			log("Configuration " + (c + 1) + "/" + configurations + ": " + Arrays.toString(row));
+
+			store = new ProblemStore(scores);
+			allSequences = new ArrayList<Sequence>();
+			for (Sequence sequence : sequences)
+				allSequences.add(sequence.copy(store));
+
+			aggregationBase = initialBase;
+			for (Metric metric : metrics)
+			{
+				metric.weight = weights[metric.index];
+				metric.threshold = thresholds[metric.index];
+				metric.thresholdReversed = reversed[metric.index];
+			}
+			try
+			{
+				// The swept thresholds give the direction, as when the metrics are created.
+				if (grid.containsKey("metric_threshold")) for (Metric metric : metrics)
+					metric.thresholdReversed = false;
+				readThresholds(settings.getProperty("metric_threshold"));
+				// Thresholds are centered as the metric scores were, see Main#cleanSequences(). The distribution is (0, 1) if they weren't.
 				for (Metric metric : metrics)
+					metric.threshold = metric.initialDistribution.reduce(metric.threshold);
+			} catch (Exception e)
+			{
+				log(Log.ERROR, "Incorrect value for metric threshold: " + settings.getProperty("metric_threshold"));
+				continue;
+			}
+			if (!prepareSequences() || !computeValidations()) continue;
+			runKnowledgeTracing(null, false);
+
+			String[][] params = outputParams();
+			if (rows.isEmpty())
+			{
+				String[] header = Arrays.copyOf(names, names.length + params.length - 1);
+				for (int p = 1; p < params.length; ++p)
+					header[names.length + p - 1] = params[p][0];
+				rows.add(header);
+			}
+			row = Arrays.copyOf(row, names.length + params.length - 1);
+			for (int p = 1; p < params.length; ++p)
+				row[names.length + p - 1] = params[p][1];
+			rows.add(row);
+		}
+
+		settings = base;
+		allSequences = sequences;
+		store = scores;
+		aggregationBase = initialBase;
+		for (Metric metric : metrics)
+			metric.weight = weights[metric.index];
+		if (rows.isEmpty())
+		{
+			log(Log.ERROR, "No configuration of the sweep succeeded");
+			return false;
+		}
+		exportData(new File(settings.getProperty("output_sweep", "sweep.csv")), rows.toArray(new String[rows.size()][]));
+		return true;
+	}
+
+	/** Trains a linear classifier predicting the binary Expected Knowledge of representative Problems from their metric scores, and uses its coefficients
+	 * as metric weights. The loss is set by the "svm_loss" setting: "hinge" (linear SVM, default) or "logistic".
+	 * 
+	 * @return True if succeeded. */
+	private static boolean trainClassifier()
+	{
+		byte loss;
+		String lossName = settings.getProperty("svm_loss", "hinge");
+		if (lossName.equals("hinge")) loss = LinearClassifier.SQUARED_HINGE;
+		else if (lossName.equals("logistic")) loss = LinearClassifier.LOGISTIC;
+		else
+		{
+			log(Log.ERROR, "Incorrect value for svm loss: " + lossName);
+			return false;
+		}
+
+		int size = 0;
+		for (Sequence sequence : allSequences)
+			for (Problem problem : sequence.problems)
+				if (problem.isRepresentative) ++size;
+		double[][] features = new double[metrics.size()][size];
+		boolean[] labels = new boolean[size];
+		double threshold = settings.getProperty("expected_binary").equals("false") ? -1 : Double.parseDouble(settings.getProperty("expected_binary"));
+		int row = 0, positives = 0;
+		for (Sequence sequence : allSequences)
+			for (Problem problem : sequence.problems)
+				if (problem.isRepresentative)
 				{
-					data[current][0] = sequence.name;
-					data[current][1] = problem.name;
-					data[current][2] = metric.name;
-					data[current][3] = Utils.toString(metric.initialDistribution.unreduce(problem.metricScores.get(metric)));
-					data[current][4] = Utils.toString(metric.initialDistribution.unreduce(problem.metricKnowledge.get(metric).mean));
-					++current;
+					for (Metric metric : metrics)
+						features[metric.index][row] = metric.initialDistribution.unreduce(store.scores[metric.index][problem.ordinal]);
+					labels[row] = problem.expectedKnowledge >= threshold;
+					if (labels[row++]) ++positives;
 				}
+		if (positives == 0 || positives == size)
+		{
+			log(Log.WARNING, "SVM failed ! Expected Knowledge has a single class, check expected_binary.");
+			return false;
+		}
 
-		return data;
+		log("Training linear classifier on " + size + " problems...");
+		LinearClassifier classifier = new LinearClassifier(features, labels, loss);
+		double[] weights = classifier.search(LinearClassifier.defaultC());
+		log("Best C: " + Utils.toString(classifier.bestC) + ", cross validation accuracy: " + Utils.toString(classifier.bestAccuracy));
+		for (Metric metric : metrics)
+			metric.weight = weights[metric.index] * 1. / 1000000.;
+		return true;
 	}
 
 	/** @return The data to output. */
@@ -862,50 +1833,6 @@ public class Main
 		return output;
 	}
 
-	/** @return The Knowledge associated with each problem. */
-	private static String[][] outputProblems()
-	{
-		String[][] data = new String[totalProblems + 1][10];
-
-		data[0][0] = "sequence";
-		data[0][1] = "problem";
-		data[0][2] = "computed_knowledge";
-		data[0][3] = "computed_variation";
-		data[0][4] = "aggregated_knowledge";
-		data[0][5] = "aggregated_variation";
-		data[0][6] = "learned";
-		data[0][7] = "learned_aggregation";
-		data[0][8] = "expected";
-		data[0][9] = "sequence_rmse";
-
-		int current = 1;
-		double threshold = settings.getProperty("expected_binary").equals("false") ? -1 : Double.parseDouble(settings.getProperty("expected_binary"));
-		double rmse;
-		ArrayList<Sequence> s = new ArrayList<Sequence>();
-		for (Sequence sequence : allSequences)
-		{
-			s.clear();
-			s.add(sequence);
-			rmse = computePrecision(s, false);
-			for (Problem problem : sequence.problems)
-			{
-				data[current][0] = sequence.name;
-				data[current][1] = problem.name;
-				data[current][2] = Utils.toString(problem.knowledge.mean);
-				data[current][3] = Utils.toString(problem.knowledge.variation);
-				data[current][4] = problem.aggregatedKnowledge == null ? "N/A" : Utils.toString(problem.aggregatedKnowledge.mean);
-				data[current][5] = problem.aggregatedKnowledge == null ? "N/A" : Utils.toString(problem.aggregatedKnowledge.variation);
-				data[current][6] = problem.knowledge.mean > threshold ? "1" : "0";
-				data[current][7] = problem.aggregatedKnowledge == null ? "N/A" : problem.aggregatedKnowledge.mean > threshold ? "1" : "0";
-				data[current][8] = Utils.toString(problem.expectedKnowledge);
-				data[current][9] = Utils.toString(rmse);
-				++current;
-			}
-		}
-
-		return data;
-	}
-
 	/** @return The file to be processed for SVM. */
 	private static String[][] outputSVM(boolean binary)
 	{
@@ -928,7 +1855,7 @@ public class Main
 				{
 					data[current][0] = problem.name;
 					for (int i = 0; i < metrics.size(); ++i)
-						data[current][i + 1] = Utils.toString(metrics.get(i).initialDistribution.unreduce(problem.metricScores.get(metrics.get(i))));
+						data[current][i + 1] = Utils.toString(metrics.get(i).initialDistribution.unreduce(store.scores[i][problem.ordinal]));
 					data[current][1 + metrics.size()] = binary ? problem.expectedKnowledge >= threshold ? "1" : "0" : Utils.toString(problem.expectedKnowledge);
 					++current;
 				}
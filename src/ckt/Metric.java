@@ -5,6 +5,8 @@ import ckt.KTParameters.Gaussian;
 public class Metric implements Comparable<Metric>
 {
 
+	/** The index of this Metric in {@link Main#metrics}. */
+	public final int index;
 	/** The initial distribution before reducing & centering. */
 	public Gaussian initialDistribution;
 	/** This Metric's name. */
@@ -16,9 +18,10 @@ public class Metric implements Comparable<Metric>
 	/** The weight to aggregate. */
 	public double weight;
 
-	public Metric(String name)
+	public Metric(String name, int index)
 	{
 		this.name = name;
+		this.index = index;
 		this.initialDistribution = new Gaussian(0, 1);
 		this.thresholdReversed = false;
 	}
@@ -29,4 +32,10 @@ public class Metric implements Comparable<Metric>
 		return this.name.compareTo(o.name);
 	}
 
+	/** @return True if the input score is valid for this Metric, i.e. if the Problem is correct. */
+	public boolean isValid(double score)
+	{
+		return (!this.thresholdReversed && score >= this.threshold) || (this.thresholdReversed && score < this.threshold);
+	}
+
 }
@@ -0,0 +1,206 @@
+package ckt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import ckt.KTParameters.Gaussian;
+
+/** The parameters trained by a run, to score new data without training again. Saved in a binary file: magic, version, then the parameters of each step of
+ * cross validation for main Knowledge, Knowledge on expected scores and each metric, then the metrics and the aggregation. Each parameters array has two
+ * extra slots: the mean parameters and their deviation, see {@link Main#computeStats(KTParameters[])}. */
+public class Model
+{
+	/** "CKTM" */
+	private static final int MAGIC = 0x434B544D;
+	/** Version of the layout. */
+	private static final int VERSION = 2;
+
+	/** Reads a model file.
+	 *
+	 * @throws IOException If the file can't be read or isn't a model file. */
+	public static Model read(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if (in.readInt() != MAGIC) throw new IOException("Not a model file: " + file.getName());
+			int version = in.readInt();
+			if (version != VERSION) throw new IOException("Unsupported model file version: " + version);
+
+			int slots = in.readInt(), metrics = in.readInt();
+			Model model = new Model(metrics);
+			model.aggregationBase = in.readDouble();
+			model.mainParameters = readParameters(in, slots);
+			model.expectedParameters = readParameters(in, slots);
+			for (int m = 0; m < metrics; ++m)
+			{
+				model.names[m] = in.readUTF();
+				model.thresholds[m] = in.readDouble();
+				model.thresholdsReversed[m] = in.readBoolean();
+				model.distributions[m] = new Gaussian(in.readDouble(), in.readDouble());
+				model.weights[m] = in.readDouble();
+				model.metricParameters[m] = readParameters(in, slots);
+			}
+			return model;
+		} finally
+		{
+			in.close();
+		}
+	}
+
+	/** @return <code>slots</code> parameters read from the input stream. */
+	static KTParameters[] readParameters(DataInputStream in, int slots) throws IOException
+	{
+		KTParameters[] parameters = new KTParameters[slots];
+		for (int i = 0; i < slots; ++i)
+		{
+			double start = in.readDouble(), transition = in.readDouble();
+			Gaussian guess = null, slip = null;
+			if (in.readBoolean())
+			{
+				guess = new Gaussian(in.readDouble(), in.readDouble());
+				slip = new Gaussian(in.readDouble(), in.readDouble());
+			}
+			parameters[i] = new KTParameters(start, transition, guess, slip);
+		}
+		return parameters;
+	}
+
+	/** Writes the input parameters. */
+	static void writeParameters(DataOutputStream out, KTParameters[] parameters) throws IOException
+	{
+		for (KTParameters p : parameters)
+		{
+			out.writeDouble(p.startKnowledge);
+			out.writeDouble(p.transition);
+			out.writeBoolean(p.guess != null && p.slip != null);
+			if (p.guess != null && p.slip != null)
+			{
+				out.writeDouble(p.guess.mean);
+				out.writeDouble(p.guess.variation);
+				out.writeDouble(p.slip.mean);
+				out.writeDouble(p.slip.variation);
+			}
+		}
+	}
+
+	/** Constant added to the metrics aggregation. */
+	public double aggregationBase;
+	/** The distribution each metric was reduced with, see {@link Metric#initialDistribution}. */
+	public final Gaussian[] distributions;
+	/** The parameters for the Knowledge on expected scores. */
+	public KTParameters[] expectedParameters;
+	/** The parameters for main Knowledge. */
+	public KTParameters[] mainParameters;
+	/** The parameters for each metric. */
+	public final KTParameters[][] metricParameters;
+	/** The name of each metric. */
+	public final String[] names;
+	/** The threshold of each metric, once reduced. */
+	public final double[] thresholds;
+	/** True if scores of the metric should be lower than its threshold. */
+	public final boolean[] thresholdsReversed;
+	/** The weight of each metric. */
+	public final double[] weights;
+
+	/** Creates a model with the state of the input metrics. The parameters are to be set. */
+	public Model(List<Metric> metrics)
+	{
+		this(metrics.size());
+		for (Metric metric : metrics)
+		{
+			this.names[metric.index] = metric.name;
+			this.thresholds[metric.index] = metric.threshold;
+			this.thresholdsReversed[metric.index] = metric.thresholdReversed;
+			this.distributions[metric.index] = metric.initialDistribution;
+			this.weights[metric.index] = metric.weight;
+		}
+	}
+
+	private Model(int metrics)
+	{
+		this.distributions = new Gaussian[metrics];
+		this.metricParameters = new KTParameters[metrics][];
+		this.names = new String[metrics];
+		this.thresholds = new double[metrics];
+		this.thresholdsReversed = new boolean[metrics];
+		this.weights = new double[metrics];
+	}
+
+	/** Sets the state of the input metrics, which must be the metrics of this model.
+	 *
+	 * @throws IllegalArgumentException If the metrics don't match. */
+	public void apply(List<Metric> metrics)
+	{
+		if (metrics.size() != this.names.length) throw new IllegalArgumentException("The model has " + this.names.length + " metrics, not "
+				+ metrics.size());
+		for (Metric metric : metrics)
+		{
+			if (!metric.name.equals(this.names[metric.index])) throw new IllegalArgumentException("Metric " + metric.index + " of the model is "
+					+ this.names[metric.index] + ", not " + metric.name);
+			metric.threshold = this.thresholds[metric.index];
+			metric.thresholdReversed = this.thresholdsReversed[metric.index];
+			metric.initialDistribution = this.distributions[metric.index];
+			metric.weight = this.weights[metric.index];
+		}
+	}
+
+	/** @return The mean parameters for main Knowledge. */
+	public KTParameters parameters()
+	{
+		return this.mainParameters[this.mainParameters.length - 2];
+	}
+
+	/** @return The mean parameters for each metric. */
+	public KTParameters[] metricParameters()
+	{
+		KTParameters[] parameters = new KTParameters[this.metricParameters.length];
+		for (int m = 0; m < parameters.length; ++m)
+			parameters[m] = this.metricParameters[m][this.metricParameters[m].length - 2];
+		return parameters;
+	}
+
+	/** @return The number of steps of cross validation the model was trained with. */
+	public int validations()
+	{
+		return this.mainParameters.length - 2;
+	}
+
+	/** Writes this model to the input file. */
+	public void write(File file) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(this.mainParameters.length);
+			out.writeInt(this.names.length);
+			out.writeDouble(this.aggregationBase);
+			writeParameters(out, this.mainParameters);
+			writeParameters(out, this.expectedParameters);
+			for (int m = 0; m < this.names.length; ++m)
+			{
+				out.writeUTF(this.names[m]);
+				out.writeDouble(this.thresholds[m]);
+				out.writeBoolean(this.thresholdsReversed[m]);
+				out.writeDouble(this.distributions[m].mean);
+				out.writeDouble(this.distributions[m].variation);
+				out.writeDouble(this.weights[m]);
+				writeParameters(out, this.metricParameters[m]);
+			}
+		} finally
+		{
+			out.close();
+		}
+		Telemetry.count(Telemetry.BYTES_WRITTEN, file.length());
+	}
+
+}
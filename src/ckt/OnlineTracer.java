@@ -0,0 +1,239 @@
+package ckt;
+
+import java.util.List;
+
+import ckt.KTParameters.Gaussian;
+
+/** Updates the Knowledge of Sequences one Problem at a time, as Problems arrive, with parameters found by a previous run. Each update costs O(1): only the
+ * last Knowledge of each Sequence is kept, with the same update as {@link Sequence#computeKnowledge(KTParameters, Metric, long)}.<br />
+ * The random values of an update only depend on the seed, the name of the Sequence and the number of Problems before, so the Knowledge doesn't depend on
+ * the order Sequences are updated in. They don't follow the random sequence of a whole run though.<br />
+ * Thread safe: Sequences are spread between segments, each with its own lock. A Sequence takes about 30 bytes besides its name. */
+public class OnlineTracer
+{
+	/** The buffers of a thread to compute metric Knowledge and aggregate it. */
+	private static class Buffers
+	{
+		/** The aggregated values. */
+		final double[] aggregated;
+		/** Draws of the Knowledge of each metric. */
+		final double[][] draws;
+		/** The Knowledge of each metric. */
+		final double[] means, variations;
+
+		Buffers(int metrics)
+		{
+			this.aggregated = new double[Sequence.DRAWS];
+			this.draws = new double[metrics][Sequence.DRAWS];
+			this.means = new double[metrics];
+			this.variations = new double[metrics];
+		}
+	}
+
+	/** The Knowledge of the Sequences of a segment. Open addressing with linear probing, in parallel arrays instead of an object per Sequence. */
+	private static class Segment
+	{
+		/** The number of Problems of each Sequence. */
+		int[] counts;
+		/** The hash of each Sequence, see {@link OnlineTracer#spread(int)}. */
+		int[] hashes;
+		/** The Knowledge of each Sequence. */
+		double[] means, variations;
+		/** The name of each Sequence, null for free slots. */
+		String[] names;
+		/** The number of Sequences. */
+		int size;
+
+		Segment()
+		{
+			this.allocate(16);
+		}
+
+		/** Creates empty arrays for <code>capacity</code> slots, a power of 2. */
+		void allocate(int capacity)
+		{
+			this.counts = new int[capacity];
+			this.hashes = new int[capacity];
+			this.means = new double[capacity];
+			this.variations = new double[capacity];
+			this.names = new String[capacity];
+		}
+
+		/** Adds a Sequence with no Problem.
+		 * 
+		 * @return Its slot. */
+		int add(String name, int hash, double knowledge)
+		{
+			if ((this.size + 1) * 4 > this.names.length * 3) this.grow();
+			int slot = this.slot(name, hash);
+			this.names[slot] = name;
+			this.hashes[slot] = hash;
+			this.means[slot] = knowledge;
+			++this.size;
+			return slot;
+		}
+
+		/** Doubles the number of slots. */
+		void grow()
+		{
+			int[] counts = this.counts, hashes = this.hashes;
+			double[] means = this.means, variations = this.variations;
+			String[] names = this.names;
+			this.allocate(names.length * 2);
+			for (int i = 0; i < names.length; ++i)
+				if (names[i] != null)
+				{
+					int slot = this.slot(names[i], hashes[i]);
+					this.names[slot] = names[i];
+					this.hashes[slot] = hashes[i];
+					this.counts[slot] = counts[i];
+					this.means[slot] = means[i];
+					this.variations[slot] = variations[i];
+				}
+		}
+
+		/** @return The slot of the input Sequence, or the free slot where it should be added. */
+		int slot(String name, int hash)
+		{
+			int mask = this.names.length - 1, slot = hash & mask;
+			while (this.names[slot] != null && (this.hashes[slot] != hash || !this.names[slot].equals(name)))
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+	}
+
+	/** The number of segments, a power of 2. */
+	private static final int SEGMENTS = 64;
+
+	/** @return The input hash code, with its high bits spread to the low bits. The low bits choose the segment, the others the slot. */
+	private static int spread(int hash)
+	{
+		hash ^= hash >>> 16;
+		return hash * 0x9e3779b9;
+	}
+
+	/** Aggregates the metric Knowledge, null if there are no metrics. */
+	private final AggregationFunction aggregation;
+	/** The buffers of each thread. */
+	private final ThreadLocal<Buffers> buffers;
+	/** The parameters for each metric. */
+	private final KTParameters[] metricParameters;
+	/** The metrics. Their scores are reduced with {@link Metric#initialDistribution}. */
+	private final List<Metric> metrics;
+	/** The parameters for main Knowledge. */
+	public final KTParameters parameters;
+	/** The seed of the random values. */
+	public final long seed;
+	/** The Sequences, by the low bits of their hash. */
+	private final Segment[] segments;
+	/** True if the metric Knowledge is unreduced before aggregation, and the result capped at 1. See {@link Main#aggregateProblem}. */
+	private final boolean unreduce;
+
+	/** @param metricParameters - The parameters for each metric.
+	 * @param aggregation - Aggregates the metric Knowledge, null if there are no metrics.
+	 * @param unreduce - True if the metric Knowledge is unreduced before aggregation, and the result capped at 1. */
+	public OnlineTracer(KTParameters parameters, List<Metric> metrics, KTParameters[] metricParameters, AggregationFunction aggregation, boolean unreduce,
+			long seed)
+	{
+		this.parameters = parameters;
+		this.metrics = metrics;
+		this.metricParameters = metricParameters;
+		this.aggregation = aggregation;
+		this.unreduce = unreduce;
+		this.seed = seed;
+		this.segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; ++i)
+			this.segments[i] = new Segment();
+		final int size = metrics.size();
+		this.buffers = new ThreadLocal<Buffers>()
+		{
+			@Override
+			protected Buffers initialValue()
+			{
+				return new Buffers(size);
+			}
+		};
+	}
+
+	/** @return The last Knowledge of the input Sequence, null if it has no Problem. */
+	public Gaussian knowledge(String sequence)
+	{
+		int hash = spread(sequence.hashCode());
+		Segment segment = this.segments[hash & (SEGMENTS - 1)];
+		synchronized (segment)
+		{
+			int slot = segment.slot(sequence, hash);
+			if (segment.names[slot] == null) return null;
+			return new Gaussian(segment.means[slot], segment.variations[slot]);
+		}
+	}
+
+	/** @return The number of Sequences. */
+	public int size()
+	{
+		int size = 0;
+		for (Segment segment : this.segments)
+			synchronized (segment)
+			{
+				size += segment.size;
+			}
+		return size;
+	}
+
+	/** Adds a Problem at the end of a Sequence, and computes its Knowledge. Creates the Sequence if it has no Problem yet.
+	 * 
+	 * @param problem - The Problem, with its {@link Problem#score}. Receives its Knowledge, and its aggregated Knowledge if there are metrics.
+	 * @param metricScores - The score of the Problem for each metric, as in the input file.
+	 * @return The input Problem. */
+	public Problem update(String sequence, Problem problem, double[] metricScores)
+	{
+		int hash = spread(sequence.hashCode()), count;
+		long key = RandomSource.hash(sequence);
+		double mean, variation;
+		KnowledgeEngine.Workspace workspace = KnowledgeEngine.workspace();
+		Segment segment = this.segments[hash & (SEGMENTS - 1)];
+		synchronized (segment)
+		{
+			int slot = segment.slot(sequence, hash);
+			if (segment.names[slot] == null) slot = segment.add(sequence, hash, this.parameters.startKnowledge);
+			mean = segment.means[slot];
+			variation = segment.variations[slot];
+			count = segment.counts[slot];
+
+			workspace.random.reset(RandomSource.derive(this.seed, key, count, 0));
+			Sequence.engine.computeKnowledge(mean, variation, problem.score, this.parameters, workspace);
+			problem.knowledgeMean = segment.means[slot] = workspace.result[0];
+			problem.knowledgeVariation = segment.variations[slot] = workspace.result[1];
+			segment.counts[slot] = count + 1;
+		}
+		if (this.metrics.isEmpty()) return problem;
+
+		// Metric Knowledge starts from the main Knowledge before the Problem, as in Sequence#computeKnowledge.
+		Buffers buffers = this.buffers.get();
+		double[][] draws = buffers.draws;
+		double[] aggregated = buffers.aggregated, metricMean = buffers.means, metricVariation = buffers.variations;
+		for (Metric metric : this.metrics)
+		{
+			workspace.random.reset(RandomSource.derive(this.seed, key, count, 1 + metric.index));
+			Sequence.engine.computeKnowledge(mean, variation, metric.initialDistribution.reduce(metricScores[metric.index]),
+					this.metricParameters[metric.index], workspace);
+			metricMean[metric.index] = workspace.result[0];
+			metricVariation[metric.index] = workspace.result[1];
+		}
+
+		RandomSource random = workspace.random;
+		random.reset(RandomSource.derive(this.seed, key, count, 1 + this.metrics.size()));
+		for (int d = 0; d < Sequence.DRAWS; ++d)
+			for (Metric metric : this.metrics)
+			{
+				double value = Gaussian.next(metricMean[metric.index], metricVariation[metric.index], random);
+				draws[metric.index][d] = this.unreduce ? metric.initialDistribution.unreduce(value) : value;
+			}
+		this.aggregation.aggregate(draws, 0, Sequence.DRAWS, aggregated);
+		if (this.unreduce) for (int d = 0; d < Sequence.DRAWS; ++d)
+			if (aggregated[d] >= 1) aggregated[d] = 1;
+		problem.aggregatedKnowledge = Utils.makeGaussian(aggregated);
+		return problem;
+	}
+
+}
@@ -1,7 +1,5 @@
 package ckt;
 
-import java.util.HashMap;
-
 import ckt.KTParameters.Gaussian;
 
 public class Problem implements Comparable<Problem>
@@ -17,14 +15,12 @@ public class Problem implements Comparable<Problem>
 	boolean isCorrect;
 	/** True if this Problem should be used when computing precision. */
 	boolean isRepresentative = false;
-	/** The Knowledge computed after this Problem. */
-	Gaussian knowledge;
-	/** The knowledge for each individual metric. */
-	public final HashMap<Metric, Gaussian> metricKnowledge;
-	/** The score for each individual metric. */
-	public final HashMap<Metric, Double> metricScores;
+	/** The Knowledge computed after this Problem: mean and variation. */
+	double knowledgeMean, knowledgeVariation;
 	/** Problem name. */
 	public final String name;
+	/** Index of the metric scores and metric Knowledge of this Problem in its {@link Sequence#store}. */
+	int ordinal;
 	/** The focusness score of this problem. */
 	double score;
 
@@ -37,8 +33,6 @@ public class Problem implements Comparable<Problem>
 	{
 		this.name = name;
 		this.index = index;
-		this.metricScores = new HashMap<Metric, Double>();
-		this.metricKnowledge = new HashMap<Metric, Gaussian>();
 	}
 
 	/** @return A copy of this Problem, with scores as expected. */
@@ -48,6 +42,7 @@ public class Problem implements Comparable<Problem>
 		copy.score = this.expectedKnowledge;
 		copy.index = this.index;
 		copy.isCorrect = this.isCorrect;
+		copy.ordinal = this.ordinal;
 		return copy;
 	}
 
@@ -57,4 +52,15 @@ public class Problem implements Comparable<Problem>
 		if (this.index == -1) return this.name.compareTo(o.name);
 		return Integer.compare(this.index, o.index);
 	}
+
+	/** @return A copy of this Problem, before Knowledge Tracing: score, expected Knowledge and correctness. */
+	public Problem copy()
+	{
+		Problem copy = new Problem(this.name, this.index);
+		copy.score = this.score;
+		copy.expectedKnowledge = this.expectedKnowledge;
+		copy.isCorrect = this.isCorrect;
+		copy.ordinal = this.ordinal;
+		return copy;
+	}
 }
@@ -0,0 +1,99 @@
+package ckt;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** Columnar storage for the metric scores and metric Knowledge of Problems: one array per metric, indexed by the ordinal of the Problem. The Problems of a
+ * Sequence are contiguous, from {@link Sequence#offset} to {@link Sequence#offset} + size - 1. */
+public class ProblemStore
+{
+	/** Collects the metric scores of Problems by input row, before they are laid out by Sequence with {@link Builder#build(List)}. Rows are stored in blocks
+	 * of {@link Builder#BLOCK} rows, so that several threads can fill their own blocks at the same time, see {@link Builder#block(int)}. */
+	public static class Builder
+	{
+		/** The number of rows in a block. */
+		public static final int BLOCK = 4096;
+
+		/** The scores of each row, row after row, by block. */
+		private double[][] blocks;
+		/** The number of metrics. */
+		public final int metrics;
+		/** The number of rows added with {@link Builder#add(double[])}. */
+		private int size;
+
+		public Builder(int metrics)
+		{
+			this.metrics = metrics;
+			this.blocks = new double[16][];
+		}
+
+		/** Adds the metric scores of a Problem, after the last row added with this method. Not to be mixed with {@link Builder#block(int)}.
+		 *
+		 * @return The row of the Problem, to set as {@link Problem#ordinal} until the store is built. */
+		public int add(double[] scores)
+		{
+			System.arraycopy(scores, 0, this.block(this.size / BLOCK), (this.size % BLOCK) * this.metrics, this.metrics);
+			return this.size++;
+		}
+
+		/** Thread safe.
+		 *
+		 * @return The scores of rows index * {@link Builder#BLOCK} to (index + 1) * {@link Builder#BLOCK} - 1, row after row. Created if needed. */
+		public synchronized double[] block(int index)
+		{
+			if (index >= this.blocks.length) this.blocks = Arrays.copyOf(this.blocks, Math.max(index + 1, this.blocks.length * 2));
+			if (this.blocks[index] == null) this.blocks[index] = new double[BLOCK * this.metrics];
+			return this.blocks[index];
+		}
+
+		/** Lays out the Problems of the input Sequences contiguously, Sequence after Sequence, and sets their offsets and ordinals. The Problems of each
+		 * Sequence must already be in their final order. */
+		public ProblemStore build(List<Sequence> sequences)
+		{
+			int size = 0;
+			for (Sequence sequence : sequences)
+				size += sequence.problems.size();
+
+			ProblemStore store = new ProblemStore(this.metrics, size);
+			int ordinal = 0;
+			for (Sequence sequence : sequences)
+			{
+				sequence.store = store;
+				sequence.offset = ordinal;
+				for (Problem problem : sequence.problems)
+				{
+					for (int m = 0; m < this.metrics; ++m)
+						store.scores[m][ordinal] = this.blocks[problem.ordinal / BLOCK][(problem.ordinal % BLOCK) * this.metrics + m];
+					problem.ordinal = ordinal++;
+				}
+			}
+			this.blocks = null;
+			return store;
+		}
+	}
+
+	/** knowledgeMean[m][p] and knowledgeVariation[m][p]: The Knowledge for the Metric of index m after the Problem of ordinal p. */
+	public final double[][] knowledgeMean, knowledgeVariation;
+	/** scores[m][p]: The score for the Metric of index m of the Problem of ordinal p. */
+	public final double[][] scores;
+	/** The number of Problems. */
+	public final int size;
+
+	public ProblemStore(int metrics, int size)
+	{
+		this.size = size;
+		this.scores = new double[metrics][size];
+		this.knowledgeMean = new double[metrics][size];
+		this.knowledgeVariation = new double[metrics][size];
+	}
+
+	/** Creates a store sharing the scores of the input store, with its own Knowledge. The scores are not to be modified. */
+	public ProblemStore(ProblemStore store)
+	{
+		this.size = store.size;
+		this.scores = store.scores;
+		this.knowledgeMean = new double[this.scores.length][this.size];
+		this.knowledgeVariation = new double[this.scores.length][this.size];
+	}
+
+}
@@ -0,0 +1,94 @@
+package ckt;
+
+/** Random number generator using the SplitMix64 algorithm of {@link java.util.SplittableRandom}. Unlike it, its state can be set again with
+ * {@link RandomSource#reset(long)}, so that a single instance per thread can be reused for every Sequence.<br />
+ * Not thread safe: each task uses its own source, derived from the run seed with {@link RandomSource#derive(long, long...)}. This way, results only
+ * depend on the seed, and not on the number of threads or the order tasks are executed in. */
+public class RandomSource
+{
+	/** Increment of the state, as in SplittableRandom. */
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	/** @return A seed for the input keys, derived from the input seed. The same keys always give the same seed. */
+	public static long derive(long seed, long... keys)
+	{
+		long derived = mix(seed);
+		for (long key : keys)
+			derived = mix(derived + GOLDEN_GAMMA * (key + 1));
+		return derived;
+	}
+
+	/** @return A 64-bit hash of the input name (FNV-1a), to derive a seed for a Sequence. */
+	public static long hash(String name)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); ++i)
+		{
+			hash ^= name.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/** The finalizer of SplitMix64. */
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/** True if {@link RandomSource#nextGaussian} is stored. */
+	private boolean hasNextGaussian;
+	/** The second value generated by the polar method. */
+	private double nextGaussian;
+	/** The state of the generator. */
+	private long state;
+
+	public RandomSource(long seed)
+	{
+		this.reset(seed);
+	}
+
+	/** @return A random value between 0 (included) and 1 (excluded). */
+	public double nextDouble()
+	{
+		return (this.nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/** @return A random value from the standard normal distribution, with the polar method as in {@link java.util.Random#nextGaussian()}. */
+	public double nextGaussian()
+	{
+		if (this.hasNextGaussian)
+		{
+			this.hasNextGaussian = false;
+			return this.nextGaussian;
+		}
+
+		double v1, v2, s;
+		do
+		{
+			v1 = 2 * this.nextDouble() - 1;
+			v2 = 2 * this.nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		} while (s >= 1 || s == 0);
+		double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+		this.nextGaussian = v2 * multiplier;
+		this.hasNextGaussian = true;
+		return v1 * multiplier;
+	}
+
+	/** @return A random 64-bit value. */
+	public long nextLong()
+	{
+		return mix(this.state += GOLDEN_GAMMA);
+	}
+
+	/** Sets the state of this source, as if it was just created with the input seed. */
+	public void reset(long seed)
+	{
+		this.state = seed;
+		this.hasNextGaussian = false;
+	}
+
+}
@@ -0,0 +1,439 @@
+package ckt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/** Binary columnar file with the results of a run, read through a memory mapping: finding a Sequence and reading its Knowledge doesn't parse anything.
+ * The output CSV files can be generated from it, see {@link ResultFile#main(String[])}.<br />
+ * <br />
+ * Layout, little-endian, sections aligned on 8 bytes:
+ * <ul>
+ * <li>Header: magic, version, number of Sequences S, Problems P and metrics M, threshold for "learned" (-1 if none), offset of each section.</li>
+ * <li>Names: offsets of S + P + M + 1 UTF-8 strings (Sequences, Problems, metrics), then their bytes.</li>
+ * <li>Sequences: index of the first Problem of each Sequence, plus P; Sequences sorted by the bytes of their names; RMSE of each Sequence.</li>
+ * <li>Columns of P values: computed Knowledge mean and variation, aggregated Knowledge mean and variation, Expected Knowledge, then input and learned
+ * value for each metric, then 1 byte per Problem: 1 if it has an aggregated Knowledge.</li>
+ * </ul>
+ * Problems are stored Sequence after Sequence. A single mapping is used, so files are limited to 2GB. */
+public class ResultFile
+{
+	/** Writes a file sequentially through a buffer. */
+	private static class Output
+	{
+		/** The buffer. */
+		final ByteBuffer buffer;
+		/** The file. */
+		final FileChannel channel;
+
+		Output(FileChannel channel)
+		{
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		/** Writes zeros until the position is a multiple of 8. */
+		void align() throws IOException
+		{
+			while (this.position() % 8 != 0)
+				this.ensure(1).put((byte) 0);
+		}
+
+		/** @return The buffer, with at least <code>bytes</code> remaining. */
+		ByteBuffer ensure(int bytes) throws IOException
+		{
+			if (this.buffer.remaining() < bytes) this.flush();
+			return this.buffer;
+		}
+
+		/** Writes the buffer to the file. */
+		void flush() throws IOException
+		{
+			this.buffer.flip();
+			while (this.buffer.hasRemaining())
+				this.channel.write(this.buffer);
+			this.buffer.clear();
+		}
+
+		/** @return The position in the file of the next byte written. */
+		long position() throws IOException
+		{
+			return this.channel.position() + this.buffer.position();
+		}
+
+		void put(byte[] bytes) throws IOException
+		{
+			for (int offset = 0; offset < bytes.length;)
+			{
+				int count = Math.min(bytes.length - offset, this.ensure(1).remaining());
+				this.buffer.put(bytes, offset, count);
+				offset += count;
+			}
+		}
+	}
+
+	/** Size of the header. */
+	private static final int HEADER = 64;
+	/** "CKTR" */
+	private static final int MAGIC = 0x434B5452;
+	/** Encoding of names. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Version of the layout. */
+	private static final int VERSION = 1;
+
+	/** @return The comparison of the input byte arrays, bytes being unsigned. */
+	private static int compare(byte[] a, byte[] b)
+	{
+		for (int i = 0; i < Math.min(a.length, b.length); ++i)
+			if (a[i] != b[i]) return Integer.compare(a[i] & 0xff, b[i] & 0xff);
+		return Integer.compare(a.length, b.length);
+	}
+
+	/** Generates the output CSV files from a result file.
+	 *
+	 * @param args - The result file, the output Sequences file and the output metrics file. "null" not to generate a file. */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 3)
+		{
+			System.out.println("Usage: ResultFile <result file> <output sequences | null> <output metrics | null>");
+			return;
+		}
+		ResultFile results = new ResultFile(new File(args[0]));
+		if (!args[1].equals("null")) results.exportProblems(new File(args[1]));
+		if (!args[2].equals("null")) results.exportMetrics(new File(args[2]));
+	}
+
+	/** Writes the results of a run.
+	 *
+	 * @param sequences - The Sequences, with their Knowledge.
+	 * @param rmse - The RMSE of each Sequence.
+	 * @param threshold - The threshold for "learned", -1 if none. */
+	public static void write(File file, List<Sequence> sequences, List<Metric> metrics, ProblemStore store, double[] rmse, double threshold)
+			throws IOException
+	{
+		int problems = 0;
+		for (Sequence sequence : sequences)
+			problems += sequence.problems.size();
+		final byte[][] sequenceNames = new byte[sequences.size()][];
+		for (int s = 0; s < sequenceNames.length; ++s)
+			sequenceNames[s] = sequences.get(s).name.getBytes(UTF8);
+
+		RandomAccessFile access = new RandomAccessFile(file, "rw");
+		access.setLength(0);
+		FileChannel channel = access.getChannel();
+		Output out = new Output(channel);
+		out.ensure(HEADER).position(HEADER);
+
+		// Names
+		long namesOffset = out.position();
+		int offset = 0;
+		out.ensure(4).putInt(offset);
+		for (byte[] name : sequenceNames)
+			out.ensure(4).putInt(offset += name.length);
+		for (Sequence sequence : sequences)
+			for (Problem problem : sequence.problems)
+				out.ensure(4).putInt(offset += problem.name.getBytes(UTF8).length);
+		for (Metric metric : metrics)
+			out.ensure(4).putInt(offset += metric.name.getBytes(UTF8).length);
+		for (byte[] name : sequenceNames)
+			out.put(name);
+		for (Sequence sequence : sequences)
+			for (Problem problem : sequence.problems)
+				out.put(problem.name.getBytes(UTF8));
+		for (Metric metric : metrics)
+			out.put(metric.name.getBytes(UTF8));
+		out.align();
+
+		// Sequences
+		long sequencesOffset = out.position();
+		int first = 0;
+		for (Sequence sequence : sequences)
+		{
+			out.ensure(4).putInt(first);
+			first += sequence.problems.size();
+		}
+		out.ensure(4).putInt(first);
+		Integer[] sorted = new Integer[sequences.size()];
+		for (int s = 0; s < sorted.length; ++s)
+			sorted[s] = s;
+		Arrays.sort(sorted, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer o1, Integer o2)
+			{
+				return ResultFile.compare(sequenceNames[o1], sequenceNames[o2]);
+			}
+		});
+		for (Integer s : sorted)
+			out.ensure(4).putInt(s);
+		out.align();
+		for (double value : rmse)
+			out.ensure(8).putDouble(value);
+
+		// Columns
+		long columnsOffset = out.position();
+		for (int column = 0; column < 5; ++column)
+			for (Sequence sequence : sequences)
+				for (Problem problem : sequence.problems)
+				{
+					double value;
+					if (column == 0) value = problem.knowledgeMean;
+					else if (column == 1) value = problem.knowledgeVariation;
+					else if (column == 2) value = problem.aggregatedKnowledge == null ? Double.NaN : problem.aggregatedKnowledge.mean;
+					else if (column == 3) value = problem.aggregatedKnowledge == null ? Double.NaN : problem.aggregatedKnowledge.variation;
+					else value = problem.expectedKnowledge;
+					out.ensure(8).putDouble(value);
+				}
+		for (Metric metric : metrics)
+			for (Sequence sequence : sequences)
+				for (Problem problem : sequence.problems)
+					out.ensure(8).putDouble(metric.initialDistribution.unreduce(store.scores[metric.index][problem.ordinal]));
+		for (Metric metric : metrics)
+			for (Sequence sequence : sequences)
+				for (Problem problem : sequence.problems)
+					out.ensure(8).putDouble(metric.initialDistribution.unreduce(store.knowledgeMean[metric.index][problem.ordinal]));
+		for (Sequence sequence : sequences)
+			for (Problem problem : sequence.problems)
+				out.ensure(1).put((byte) (problem.aggregatedKnowledge == null ? 0 : 1));
+		out.flush();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(sequences.size()).putInt(problems).putInt(metrics.size()).putInt(0).putDouble(threshold);
+		header.putLong(namesOffset).putLong(sequencesOffset).putLong(columnsOffset);
+		header.flip();
+		channel.position(0);
+		while (header.hasRemaining())
+			channel.write(header);
+		Telemetry.count(Telemetry.BYTES_WRITTEN, channel.size());
+		access.close();
+	}
+
+	/** The mapped file. */
+	private final ByteBuffer buffer;
+	/** Offsets of the sections. */
+	private final int columns, names, nameBytes, rmse, sequenceFirst, sorted;
+	/** The number of Metrics. */
+	public final int metrics;
+	/** The number of Problems. */
+	public final int problems;
+	/** The number of Sequences. */
+	public final int sequences;
+	/** The threshold for "learned", -1 if none. */
+	public final double threshold;
+
+	/** Maps the input file.
+	 *
+	 * @throws IOException If the file can't be read or isn't a result file. */
+	public ResultFile(File file) throws IOException
+	{
+		RandomAccessFile access = new RandomAccessFile(file, "r");
+		MappedByteBuffer mapped = access.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, access.length());
+		access.close();
+		this.buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (this.buffer.getInt(0) != MAGIC) throw new IOException("Not a result file: " + file.getName());
+		if (this.buffer.getInt(4) != VERSION) throw new IOException("Unsupported result file version: " + this.buffer.getInt(4));
+		this.sequences = this.buffer.getInt(8);
+		this.problems = this.buffer.getInt(12);
+		this.metrics = this.buffer.getInt(16);
+		this.threshold = this.buffer.getDouble(24);
+		this.names = (int) this.buffer.getLong(32);
+		this.nameBytes = this.names + 4 * (this.sequences + this.problems + this.metrics + 1);
+		this.sequenceFirst = (int) this.buffer.getLong(40);
+		this.sorted = this.sequenceFirst + 4 * (this.sequences + 1);
+		this.rmse = this.sequenceFirst + (4 * (2 * this.sequences + 1) + 7) / 8 * 8;
+		this.columns = (int) this.buffer.getLong(48);
+	}
+
+	/** @return The aggregated Knowledge mean of the input Problem, NaN if it has none. */
+	public double aggregatedMean(int problem)
+	{
+		return this.column(2, problem);
+	}
+
+	/** @return The aggregated Knowledge variation of the input Problem, NaN if it has none. */
+	public double aggregatedVariation(int problem)
+	{
+		return this.column(3, problem);
+	}
+
+	/** @return The value of the input column for the input Problem. */
+	private double column(int column, int problem)
+	{
+		return this.buffer.getDouble(this.columns + 8 * (column * this.problems + problem));
+	}
+
+	/** @return The Expected Knowledge of the input Problem. */
+	public double expectedKnowledge(int problem)
+	{
+		return this.column(4, problem);
+	}
+
+	/** Writes the output metrics CSV file, as {@link Main} does. */
+	public void exportMetrics(File output) throws IOException
+	{
+		CSVWriter writer = new CSVWriter(output);
+		writer.printRecord("sequence", "problem", "metric", "input", "learned");
+		for (int s = 0; s < this.sequences; ++s)
+		{
+			String sequence = this.sequenceName(s);
+			for (int p = this.firstProblem(s); p < this.firstProblem(s + 1); ++p)
+			{
+				String problem = this.problemName(p);
+				for (int m = 0; m < this.metrics; ++m)
+				{
+					writer.print(sequence);
+					writer.print(problem);
+					writer.print(this.metricName(m));
+					writer.print(this.metricInput(m, p));
+					writer.print(this.metricLearned(m, p));
+					writer.println();
+				}
+			}
+		}
+		writer.close();
+	}
+
+	/** Writes the output Sequences CSV file, as {@link Main} does. */
+	public void exportProblems(File output) throws IOException
+	{
+		CSVWriter writer = new CSVWriter(output);
+		writer.printRecord(Main.PROBLEMS_HEADER);
+		for (int s = 0; s < this.sequences; ++s)
+		{
+			String sequence = this.sequenceName(s);
+			for (int p = this.firstProblem(s); p < this.firstProblem(s + 1); ++p)
+			{
+				writer.print(sequence);
+				writer.print(this.problemName(p));
+				writer.print(this.knowledgeMean(p));
+				writer.print(this.knowledgeVariation(p));
+				if (this.hasAggregated(p))
+				{
+					writer.print(this.aggregatedMean(p));
+					writer.print(this.aggregatedVariation(p));
+				} else
+				{
+					writer.print("N/A");
+					writer.print("N/A");
+				}
+				writer.print(this.knowledgeMean(p) > this.threshold ? "1" : "0");
+				writer.print(!this.hasAggregated(p) ? "N/A" : this.aggregatedMean(p) > this.threshold ? "1" : "0");
+				writer.print(this.expectedKnowledge(p));
+				writer.print(this.rmse(s));
+				writer.println();
+			}
+		}
+		writer.close();
+	}
+
+	/** @param name - The name of a Sequence.
+	 * @return Its index, -1 if there is none. Binary search on the sorted names. */
+	public int find(String name)
+	{
+		byte[] bytes = name.getBytes(UTF8);
+		int low = 0, high = this.sequences - 1;
+		while (low <= high)
+		{
+			int middle = (low + high) >>> 1, sequence = this.buffer.getInt(this.sorted + 4 * middle);
+			int comparison = this.compareName(sequence, bytes);
+			if (comparison == 0) return sequence;
+			if (comparison < 0) low = middle + 1;
+			else high = middle - 1;
+		}
+		return -1;
+	}
+
+	/** @return The comparison of the name of index <code>index</code> with the input bytes. */
+	private int compareName(int index, byte[] bytes)
+	{
+		int start = this.nameBytes + this.buffer.getInt(this.names + 4 * index), length = this.nameBytes + this.buffer.getInt(this.names + 4 * (index + 1))
+				- start;
+		for (int i = 0; i < Math.min(length, bytes.length); ++i)
+		{
+			byte b = this.buffer.get(start + i);
+			if (b != bytes[i]) return Integer.compare(b & 0xff, bytes[i] & 0xff);
+		}
+		return Integer.compare(length, bytes.length);
+	}
+
+	/** @return The index of the first Problem of the input Sequence. <code>firstProblem(sequence + 1)</code> is the end of the Sequence. */
+	public int firstProblem(int sequence)
+	{
+		return this.buffer.getInt(this.sequenceFirst + 4 * sequence);
+	}
+
+	/** @return True if the input Problem has an aggregated Knowledge. */
+	public boolean hasAggregated(int problem)
+	{
+		return this.buffer.get(this.columns + 8 * (5 + 2 * this.metrics) * this.problems + problem) != 0;
+	}
+
+	/** @return The computed Knowledge mean after the input Problem. */
+	public double knowledgeMean(int problem)
+	{
+		return this.column(0, problem);
+	}
+
+	/** @return The computed Knowledge variation after the input Problem. */
+	public double knowledgeVariation(int problem)
+	{
+		return this.column(1, problem);
+	}
+
+	/** @return The input score of the input Problem for the input metric. */
+	public double metricInput(int metric, int problem)
+	{
+		return this.column(5 + metric, problem);
+	}
+
+	/** @return The learned value of the input Problem for the input metric. */
+	public double metricLearned(int metric, int problem)
+	{
+		return this.column(5 + this.metrics + metric, problem);
+	}
+
+	/** @return The name of the input metric. */
+	public String metricName(int metric)
+	{
+		return this.name(this.sequences + this.problems + metric);
+	}
+
+	/** @return The name of index <code>index</code> in the names section. */
+	private String name(int index)
+	{
+		int start = this.buffer.getInt(this.names + 4 * index), end = this.buffer.getInt(this.names + 4 * (index + 1));
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; ++i)
+			bytes[i] = this.buffer.get(this.nameBytes + start + i);
+		return new String(bytes, UTF8);
+	}
+
+	/** @return The name of the input Problem. */
+	public String problemName(int problem)
+	{
+		return this.name(this.sequences + problem);
+	}
+
+	/** @return The RMSE of the input Sequence. */
+	public double rmse(int sequence)
+	{
+		return this.buffer.getDouble(this.rmse + 8 * sequence);
+	}
+
+	/** @return The name of the input Sequence. */
+	public String sequenceName(int sequence)
+	{
+		return this.name(sequence);
+	}
+
+}
@@ -0,0 +1,236 @@
+package ckt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+
+/** Answers Knowledge requests from other processes of the same host with an {@link OnlineTracer}, on the loopback interface or on the standard streams.
+ * Requests are CSV lines:
+ * <ul>
+ * <li>A batch: one line per Problem, "sequence,score,score for each metric", then an empty line. The answer has a line per Problem,
+ * "sequence,knowledge,variation,aggregated knowledge,aggregated variation", then an empty line. Aggregated values are N/A if there are no metrics.</li>
+ * <li>"stats": answers "batches,p50,p99", latencies of the last batches in microseconds, then an empty line.</li>
+ * <li>"quit": closes the connection. "shutdown": stops the server.</li>
+ * </ul>
+ * Errors are answered "error,message" and end the batch. Connections are handled by a bounded pool: connections beyond its queue are refused. */
+public class ScoringServer
+{
+	/** The latencies of the last batches, in a ring. */
+	static class Latencies
+	{
+		/** The number of latencies kept. */
+		static final int CAPACITY = 1 << 16;
+
+		/** The number of batches. */
+		long count;
+		/** The latencies, in nanoseconds. */
+		final long[] values = new long[CAPACITY];
+
+		synchronized void add(long latency)
+		{
+			this.values[(int) (this.count++ % CAPACITY)] = latency;
+		}
+
+		/** @return The input percentiles of the latencies kept, in nanoseconds. 0 if there are none. */
+		synchronized long[] percentiles(double... percentiles)
+		{
+			long[] sorted = Arrays.copyOf(this.values, (int) Math.min(this.count, CAPACITY)), result = new long[percentiles.length];
+			Arrays.sort(sorted);
+			for (int i = 0; i < percentiles.length && sorted.length != 0; ++i)
+				result[i] = sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentiles[i] / 100 * sorted.length) - 1)];
+			return result;
+		}
+
+		/** @return The number of batches, then p50 and p99 in microseconds. */
+		synchronized String[] summary()
+		{
+			long[] percentiles = this.percentiles(50, 99);
+			return new String[]
+			{ Long.toString(this.count), Long.toString(percentiles[0] / 1000), Long.toString(percentiles[1] / 1000) };
+		}
+
+		@Override
+		public String toString()
+		{
+			String[] summary = this.summary();
+			return summary[0] + ", " + summary[1] + ", " + summary[2];
+		}
+	}
+
+	/** The number of connections waiting for a thread before new ones are refused. */
+	static final int QUEUE = 64;
+
+	/** The latencies of batches. */
+	public final Latencies latencies;
+	/** The number of metrics. */
+	private final int metrics;
+	/** The socket accepting connections, null if serving the standard streams. */
+	private ServerSocket socket;
+	/** The number of threads answering connections. */
+	public final int threads;
+	/** Computes the Knowledge. */
+	public final OnlineTracer tracer;
+
+	public ScoringServer(OnlineTracer tracer, int metrics, int threads)
+	{
+		this.tracer = tracer;
+		this.metrics = metrics;
+		this.threads = threads;
+		this.latencies = new Latencies();
+	}
+
+	/** Accepts connections on the loopback interface until "shutdown" is received. */
+	public void listen(int port) throws IOException
+	{
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(this.threads, this.threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE));
+		this.socket = new ServerSocket(port, QUEUE, InetAddress.getLoopbackAddress());
+		Main.log("Listening on " + this.socket.getLocalSocketAddress());
+		try
+		{
+			while (true)
+			{
+				final Socket connection = this.socket.accept();
+				try
+				{
+					executor.execute(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							try
+							{
+								serve(connection.getInputStream(), connection.getOutputStream());
+							} catch (IOException e)
+							{
+								Main.log(Log.ERROR, "Error on connection: " + e.getMessage());
+							} finally
+							{
+								try
+								{
+									connection.close();
+								} catch (IOException e)
+								{}
+							}
+						}
+					});
+				} catch (RejectedExecutionException e)
+				{
+					CSVWriter writer = new CSVWriter(new OutputStreamWriter(connection.getOutputStream(), Charset.forName("UTF-8")));
+					writer.printRecord("error", "Server busy");
+					writer.close();
+				}
+			}
+		} catch (IOException e)
+		{
+			// The socket was closed by "shutdown"
+			if (!this.socket.isClosed()) throw e;
+		} finally
+		{
+			executor.shutdown();
+			Main.log("Batches, p50, p99 (microseconds): " + this.latencies);
+		}
+	}
+
+	/** @return The fields of the input CSV line. */
+	private static List<String> parse(String line) throws IOException
+	{
+		if (line.indexOf('"') == -1) return Arrays.asList(line.split(",", -1));
+		ArrayList<String> fields = new ArrayList<String>();
+		for (CSVRecord record : CSVFormat.DEFAULT.parse(new StringReader(line)))
+			for (String field : record)
+				fields.add(field);
+		return fields;
+	}
+
+	/** Answers the requests read from <code>input</code> until it ends or "quit" is received. */
+	public void serve(InputStream input, OutputStream output) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, Charset.forName("UTF-8")));
+		CSVWriter writer = new CSVWriter(new OutputStreamWriter(output, Charset.forName("UTF-8")));
+		ArrayList<String> batch = new ArrayList<String>();
+		double[] scores = new double[this.metrics];
+		String line;
+		while ((line = reader.readLine()) != null)
+		{
+			if (batch.isEmpty() && line.equals("quit")) break;
+			if (batch.isEmpty() && line.equals("stats")) writer.printRecord(this.latencies.summary());
+			else if (batch.isEmpty() && line.equals("shutdown"))
+			{
+				if (this.socket != null) this.socket.close();
+				break;
+			} else if (!line.isEmpty())
+			{
+				batch.add(line);
+				continue;
+			} else if (!batch.isEmpty())
+			{
+				long start = System.nanoTime();
+				this.answer(batch, scores, writer);
+				this.latencies.add(System.nanoTime() - start);
+				batch.clear();
+			} else continue;
+			writer.println();
+			writer.flush();
+		}
+		writer.close();
+	}
+
+	/** Computes the Knowledge of each Problem of the input batch, and prints it. */
+	private void answer(List<String> batch, double[] scores, CSVWriter writer) throws IOException
+	{
+		for (String line : batch)
+		{
+			List<String> fields = parse(line);
+			if (fields.size() != 2 + this.metrics)
+			{
+				writer.printRecord("error", "Expected " + (2 + this.metrics) + " values: " + line);
+				return;
+			}
+			Problem problem = new Problem(fields.get(0));
+			try
+			{
+				problem.score = Utils.parseDouble(fields.get(1));
+				for (int m = 0; m < this.metrics; ++m)
+					scores[m] = Utils.parseDouble(fields.get(2 + m));
+			} catch (NumberFormatException e)
+			{
+				writer.printRecord("error", "Incorrect value: " + line);
+				return;
+			}
+
+			this.tracer.update(fields.get(0), problem, scores);
+			writer.print(fields.get(0));
+			writer.print(problem.knowledgeMean);
+			writer.print(problem.knowledgeVariation);
+			if (problem.aggregatedKnowledge == null)
+			{
+				writer.print("N/A");
+				writer.print("N/A");
+			} else
+			{
+				writer.print(problem.aggregatedKnowledge.mean);
+				writer.print(problem.aggregatedKnowledge.variation);
+			}
+			writer.println();
+		}
+	}
+
+}
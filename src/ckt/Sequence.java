@@ -1,8 +1,6 @@
 package ckt;
 
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Random;
 
 import ckt.KTParameters.Gaussian;
 
@@ -11,17 +9,24 @@ public class Sequence implements Comparable<Sequence>
 {
 	/** Number of random values generated to determine P(Ln). */
 	static final int DRAWS = 100;
+	/** The engine computing the Knowledge after each Problem. */
+	static KnowledgeEngine engine = new KnowledgeEngine.Sampling();
 
 	/** Best similarity found for Knowledge sequences. */
 	double bestSimilarity;
+	/** True if the Problem at the same index is considered correct. Only set for views made by {@link Sequence#view(Metric)}, as each pass of Knowledge
+	 * Tracing has its own correctness. */
+	boolean[] correct;
 	/** The final Knowledge Sequence for this Sequence. */
-	ArrayList<Double> knowledgeSequence;
+	double[] knowledgeSequence;
 	/** Sequence name. */
 	public final String name;
-	/** Probabilities for this Sequence. Some can be NaN if the sequence is full of 1 or full of 0. */
-	KTParameters parameters;
+	/** The ordinal of the first Problem of this Sequence in {@link Sequence#store}. The others follow it. */
+	int offset;
 	/** The list of Problems in this Sequence. */
 	ArrayList<Problem> problems;
+	/** Stores the metric scores and metric Knowledge of the Problems. */
+	ProblemStore store;
 
 	public Sequence(String name)
 	{
@@ -32,7 +37,7 @@ public class Sequence implements Comparable<Sequence>
 	/** @return A copy of this Sequence, with scores corresponding to expected values. */
 	public Sequence asExpected()
 	{
-		Sequence copy = new Sequence(this.name);
+		Sequence copy = this.part(this.name, 0);
 		for (Problem p : this.problems)
 			copy.problems.add(p.asExpected());
 		return copy;
@@ -44,70 +49,74 @@ public class Sequence implements Comparable<Sequence>
 		return this.name.toLowerCase().compareTo(o.name.toLowerCase());
 	}
 
-	/** Finds the Knowledge with P(Ln-1) = previous and Ci = score. */
-	private Gaussian computeKnowledge(Gaussian previous, double score, KTParameters parameters)
+	/** @return A copy of this Sequence with copies of its Problems, see {@link Problem#copy()}, in the input store. The store must have the same layout
+	 *         as the store of this Sequence. */
+	Sequence copy(ProblemStore store)
 	{
-		double[] draws = new double[DRAWS];
-		for (int i = 0; i < draws.length; ++i)
-		{
-			double slip = parameters.slip.next(), guess = parameters.guess.next(), knowledge = previous.next();
-			double success = knowledge * (1 - slip) / (knowledge * (1 - slip) + (1 - knowledge) * guess);
-			double failure = knowledge * slip / (knowledge * slip + (1 - knowledge) * (1 - guess));
-			if (Double.isNaN(success)) success = 0;
-			if (Double.isNaN(failure)) failure = 0;
-
-			double weighted = success * score + failure * (1 - score);
-			draws[i] = weighted + (1 - weighted) * parameters.transition;
-		}
-
-		return Utils.makeGaussian(draws);
+		Sequence copy = this.part(this.name, 0);
+		copy.store = store;
+		for (Problem p : this.problems)
+			copy.problems.add(p.copy());
+		return copy;
 	}
 
-	/** Finds and sets the Knowledge after sequence n. */
-	private Gaussian computeKnowledge(int n, KTParameters parameters, Metric metric)
+	/** Determines the Knowledge values of this Sequence, one Problem after the other. Uses the buffers of the current thread, so it doesn't allocate
+	 * anything however long the Sequence is.
+	 * 
+	 * @param seed - The seed of the pass. The random values only depend on it and on the name of this Sequence. */
+	void computeKnowledge(KTParameters parameters, Metric metric, long seed)
 	{
-		if (n == -1) return new Gaussian(parameters.startKnowledge, 0);
-
-		Gaussian k = this.computeKnowledge(this.computeKnowledge(n - 1, parameters, metric),
-				(metric == null ? this.problems.get(n).score : this.problems.get(n).metricScores.get(metric)), parameters);
-		if (metric == null) this.problems.get(n).knowledge = k;
-		else this.problems.get(n).metricKnowledge.put(metric, k);
-
-		/* if (Main.allSequences.indexOf(this) == 0) System.out.println((metric == null ? "general" : metric.name) + ", " + n + " : " + this.problems.get(n).knowledge); */
-		return this.problems.get(n).knowledge;
-	}
+		KnowledgeEngine.Workspace workspace = KnowledgeEngine.workspace();
+		workspace.random.reset(RandomSource.derive(seed, RandomSource.hash(this.name)));
+		double mean = parameters.startKnowledge, variation = 0;
+		double[] scores = metric == null ? null : this.store.scores[metric.index];
+		for (Problem problem : this.problems)
+		{
+			engine.computeKnowledge(mean, variation, metric == null ? problem.score : scores[problem.ordinal], parameters, workspace);
+			if (metric == null)
+			{
+				problem.knowledgeMean = workspace.result[0];
+				problem.knowledgeVariation = workspace.result[1];
+			} else
+			{
+				this.store.knowledgeMean[metric.index][problem.ordinal] = workspace.result[0];
+				this.store.knowledgeVariation[metric.index][problem.ordinal] = workspace.result[1];
+			}
 
-	/** Determines the Knowledge values of this Sequence. */
-	void computeKnowledge(KTParameters parameters, Metric metric)
-	{
-		this.computeKnowledge(this.problems.size() - 1, parameters, metric);
+			// The next Problem starts from the main Knowledge, for metrics too.
+			mean = problem.knowledgeMean;
+			variation = problem.knowledgeVariation;
+		}
+		Telemetry.count(Telemetry.PROBLEMS, this.problems.size());
 	}
 
-	/** Determines P(T), P(G), P(S) */
-	public void computeProbabilities(double startKnowledge)
+	/** Determines P(T), P(G), P(S). Some can be NaN if the sequence is full of 1 or full of 0.
+	 * 
+	 * @return The probabilities for this Sequence. Not stored, as the same Sequence is used in the learning set of several steps of cross validation. */
+	public KTParameters computeProbabilities(double startKnowledge)
 	{
 		double tNum = 0, tDenom = 0; // Numerator and denominator
 		double gNum = 0, gDenom = 0;
 		double sNum = 0, sDenom = 0;
 
-		for (int i = 0; i < this.knowledgeSequence.size(); ++i)
+		for (int i = 0; i < this.knowledgeSequence.length; ++i)
 		{
 			if (i == 0) // K0 -> K1
 			{
-				tNum += (1 - startKnowledge) * this.knowledgeSequence.get(i);
+				tNum += (1 - startKnowledge) * this.knowledgeSequence[i];
 				tDenom += 1 - startKnowledge;
 			} else
 			{
-				tNum += (1 - this.knowledgeSequence.get(i - 1)) * this.knowledgeSequence.get(i);
-				tDenom += 1 - this.knowledgeSequence.get(i - 1);
+				tNum += (1 - this.knowledgeSequence[i - 1]) * this.knowledgeSequence[i];
+				tDenom += 1 - this.knowledgeSequence[i - 1];
 			}
-			gNum += (this.problems.get(i).isCorrect ? 1 : 0) * (1 - this.knowledgeSequence.get(i));
-			gDenom += (1 - this.knowledgeSequence.get(i));
-			sNum += (this.problems.get(i).isCorrect ? 0 : 1) * this.knowledgeSequence.get(i);
-			sDenom += this.knowledgeSequence.get(i);
+			gNum += (this.correct[i] ? 1 : 0) * (1 - this.knowledgeSequence[i]);
+			gDenom += (1 - this.knowledgeSequence[i]);
+			sNum += (this.correct[i] ? 0 : 1) * this.knowledgeSequence[i];
+			sDenom += this.knowledgeSequence[i];
 		}
 
-		this.parameters = new KTParameters(startKnowledge, tNum / tDenom, new Gaussian(gNum / gDenom), new Gaussian(sNum / sDenom));
+		return new KTParameters(startKnowledge, tNum / tDenom, new Gaussian(gNum / gDenom), new Gaussian(sNum / sDenom));
 	}
 
 	/** @return The last Problem of this Sequence. */
@@ -116,46 +125,37 @@ public class Sequence implements Comparable<Sequence>
 		return this.problems.get(this.problems.size() - 1);
 	}
 
-	/** Finds the best Knowledge Sequence for this Sequence. */
+	/** Finds the best Knowledge Sequence for this Sequence. Knowledge Sequences are 0 until a split point, then 1: the best ones are those with the most
+	 * Problems matching their correctness. The Knowledge Sequence is the average of the best ones. */
 	void findKnowledgeSequence()
 	{
 		/* this.idealKnowledge = new ArrayList<Boolean>(); for (Problem problem : this.problems) this.idealKnowledge.add(problem.isFocused); */
 
-		ArrayList<ArrayList<Boolean>> sequences = this.possibleKnowledgeSequences();
-		sequences.sort(new Comparator<ArrayList<Boolean>>()
-		{
-			@Override
-			public int compare(ArrayList<Boolean> o1, ArrayList<Boolean> o2)
-			{
-				// Revert as we want the highest first
-				return -similarity(o1).compareTo(similarity(o2));
-			}
-		});
-
-		this.bestSimilarity = -1;
-		int total = 0;// Number of sequences with that similarity
-		for (int i = 0; i < sequences.size(); ++i)
+		// Matching Problems when splitting before Problem i: incorrect ones before i, and correct ones from i. Moving the split by one changes it by one.
+		int size = this.correct.length, correct = 0, best = -1, total = 0;// Number of split points with the best similarity
+		for (int i = 0; i < size; ++i)
+			if (this.correct[i]) ++correct;
+		int matching = correct;
+		for (int split = 0; split <= size; ++split)
 		{
-			if (this.bestSimilarity == -1)
+			if (matching > best)
 			{
-				this.bestSimilarity = this.similarity(sequences.get(i));
-				++total;
-			} else if (this.similarity(sequences.get(i)) == this.bestSimilarity) ++total;
-			else break;
+				best = matching;
+				total = 1;
+			} else if (matching == best) ++total;
+			if (split < size) matching += this.correct[split] ? -1 : 1;
 		}
+		this.bestSimilarity = best * 1. / size;
 
-		while (sequences.size() > total)
-			sequences.remove(total);
-
-		this.knowledgeSequence = new ArrayList<Double>();
-		double current;
-		for (int i = 0; i < sequences.get(0).size(); ++i)
+		// Knowledge at Problem i: proportion of the best split points that are before or at i.
+		this.knowledgeSequence = new double[size];
+		matching = correct;
+		int before = 0;
+		for (int i = 0; i < size; ++i)
 		{
-			current = 0;
-			for (ArrayList<Boolean> sequence : sequences)
-				current += sequence.get(i) ? 1 : 0;
-			current /= sequences.size();
-			this.knowledgeSequence.add(current);
+			if (matching == best) ++before;
+			matching += this.correct[i] ? -1 : 1;
+			this.knowledgeSequence[i] = before * 1. / total;
 		}
 	}
 
@@ -164,41 +164,41 @@ public class Sequence implements Comparable<Sequence>
 	public void generateScores(KTParameters parameters)
 	{
 		double current = parameters.startKnowledge, score;
-		Random rand = new Random();
+		RandomSource rand = new RandomSource(RandomSource.derive(Main.seed, RandomSource.hash(this.name)));
 		for (int i = 0; i < this.problems.size(); ++i)
 		{
-			score = current * (1 - parameters.slip.next()) + (1 - current) * parameters.guess.next();
+			score = current * (1 - parameters.slip.next(rand)) + (1 - current) * parameters.guess.next(rand);
 			score *= 0.4 * (rand.nextDouble() - 0.5) + 1;
 			score = Math.min(1, Math.max(0, score));
-			current = this.computeKnowledge(new Gaussian(current, 0), score, parameters).next();
+			current = engine.computeKnowledge(new Gaussian(current, 0), score, parameters, rand.nextLong()).next(rand);
 			this.problems.get(i).score = score;
 			this.problems.get(i).isCorrect = score > 0.5;
 		}
 	}
 
-	/** @return All possible Knowledge Sequences for this Sequence. */
-	ArrayList<ArrayList<Boolean>> possibleKnowledgeSequences()
+	/** @param name - The name of the new Sequence.
+	 * @param start - The index of the first Problem of the new Sequence.
+	 * @return An empty Sequence in the same store as this Sequence, starting at the input Problem. The Problems from <code>start</code> are to be added
+	 *         in order. */
+	Sequence part(String name, int start)
 	{
-		ArrayList<ArrayList<Boolean>> sequences = new ArrayList<ArrayList<Boolean>>();
-
-		for (int i = 0; i <= this.problems.size(); ++i) // n+1 possibilities (full 0 and full 1)
-		{
-			ArrayList<Boolean> sequence = new ArrayList<Boolean>();
-			for (int j = 0; j < this.problems.size(); ++j)
-				sequence.add(j >= i); // >= to get full 1
-			sequences.add(sequence);
-		}
-
-		return sequences;
+		Sequence part = new Sequence(name);
+		part.store = this.store;
+		part.offset = this.offset + start;
+		return part;
 	}
 
-	/** @return the similarity of the input <code>sequence</code> to this Sequence. */
-	Double similarity(ArrayList<Boolean> sequence)
+	/** @param metric - The Metric to determine correctness with, null to use {@link Problem#isCorrect}.
+	 * @return A view of this Sequence for a single pass of Knowledge Tracing. It shares the Problems of this Sequence, but has its own correctness and
+	 *         Knowledge Sequence. */
+	public Sequence view(Metric metric)
 	{
-		double similarity = 0;
-		for (int i = 0; i < this.problems.size() && i < sequence.size(); ++i)
-			if (this.problems.get(i).isCorrect == sequence.get(i)) ++similarity;
-		return similarity / this.problems.size();
+		Sequence view = this.part(this.name, 0);
+		view.problems = this.problems;
+		view.correct = new boolean[this.problems.size()];
+		for (int i = 0; i < view.correct.length; ++i)
+			view.correct[i] = metric == null ? this.problems.get(i).isCorrect : metric.isValid(this.store.scores[metric.index][this.offset + i]);
+		return view;
 	}
 
 }
@@ -0,0 +1,88 @@
+package ckt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Sequences by ID, filled while reading the input. Several threads can add Problems at the same time: Sequences are created atomically, and Problems are
+ * appended under the lock of their own Sequence only. The result doesn't depend on the order Problems were added in, see
+ * {@link SequenceRegistry#sequences()}. */
+public class SequenceRegistry
+{
+	/** A registered Sequence. */
+	private static class Entry
+	{
+		/** The first input row of the Sequence. */
+		int first;
+		/** The Sequence. */
+		final Sequence sequence;
+
+		Entry(Sequence sequence, int first)
+		{
+			this.sequence = sequence;
+			this.first = first;
+		}
+	}
+
+	/** The registered Sequences by ID. */
+	private final ConcurrentHashMap<String, Entry> entries;
+
+	public SequenceRegistry()
+	{
+		this.entries = new ConcurrentHashMap<String, Entry>();
+	}
+
+	/** Adds a Problem to the Sequence with the input ID. Creates the Sequence if it doesn't exist.
+	 *
+	 * @param row - The input row of the Problem, also used as its {@link Problem#ordinal} until the store is built. */
+	public void add(String id, Problem problem, int row)
+	{
+		Entry entry = this.entries.get(id);
+		if (entry == null)
+		{
+			entry = new Entry(new Sequence(id), row);
+			Entry existing = this.entries.putIfAbsent(id, entry);
+			if (existing != null) entry = existing;
+		}
+
+		synchronized (entry)
+		{
+			entry.sequence.problems.add(problem);
+			if (row < entry.first) entry.first = row;
+		}
+	}
+
+	/** To be called once all Problems are added.
+	 *
+	 * @return The Sequences, in the order of their first row in the input. Problems are sorted chronologically, then by input row. */
+	public ArrayList<Sequence> sequences()
+	{
+		ArrayList<Entry> entries = new ArrayList<Entry>(this.entries.values());
+		Collections.sort(entries, new Comparator<Entry>()
+		{
+			@Override
+			public int compare(Entry o1, Entry o2)
+			{
+				return Integer.compare(o1.first, o2.first);
+			}
+		});
+
+		ArrayList<Sequence> sequences = new ArrayList<Sequence>(entries.size());
+		for (Entry entry : entries)
+		{
+			entry.sequence.problems.sort(new Comparator<Problem>()
+			{
+				@Override
+				public int compare(Problem o1, Problem o2)
+				{
+					int order = o1.compareTo(o2);
+					return order == 0 ? Integer.compare(o1.ordinal, o2.ordinal) : order;
+				}
+			});
+			sequences.add(entry.sequence);
+		}
+		return sequences;
+	}
+
+}
@@ -0,0 +1,318 @@
+package ckt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Executes the steps of cross validation like {@link FoldExecutor}, but on worker processes of the same host. Sequences are partitioned between the
+ * workers by the hash of their name, and each worker only holds its own during the pass. A pass goes in three rounds:
+ * <ol>
+ * <li>The workers find the Knowledge Sequences and answer the sum of the first Knowledge of their Sequences in each fold, to find P(L0) of each step.</li>
+ * <li>They answer the {@link FoldStatistics} of their Sequences outside of the testing set of each step. Merged, those give the parameters of each
+ * step.</li>
+ * <li>With those parameters, they compute the Knowledge of their Sequences and answer it.</li>
+ * </ol>
+ * Each Sequence draws P(G) and P(S) from its own random source, so the parameters don't depend on the number of workers, apart from rounding, but they
+ * differ from those of {@link FoldExecutor}. The Knowledge of a Sequence only depends on the parameters, as with {@link FoldExecutor}.<br />
+ * Workers are started for each pass and talk on their standard streams. {@link Main} runs the sharded passes one after another, so that there are never
+ * more workers than shards. */
+public class ShardExecutor
+{
+	/** The Sequences used for cross validation. */
+	public final List<Sequence> sequences;
+	/** The number of worker processes. */
+	public final int shards;
+	/** The number of Sequences to use as testing set for each step. */
+	public final int testingSize;
+	/** The number of steps in cross validation. */
+	public final int validations;
+
+	/** @param shards - The number of worker processes. */
+	public ShardExecutor(List<Sequence> sequences, int validations, int testingSize, int shards)
+	{
+		this.sequences = sequences;
+		this.validations = validations;
+		this.testingSize = testingSize;
+		this.shards = shards;
+	}
+
+	/** Runs a worker: reads a pass on the standard input and answers on the standard output, see {@link ShardExecutor}.
+	 *
+	 * @param args - Unused. */
+	public static void main(String[] args)
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+		// The standard output carries the answers: anything else goes to the error output.
+		System.setOut(System.err);
+		try
+		{
+			work(in, out);
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/** Computes the Knowledge of a Sequence, as {@link Sequence#computeKnowledge(KTParameters, Metric, long)} does.
+	 *
+	 * @param scores - The score of each Problem.
+	 * @param main - The main Knowledge mean and variation after each Problem, for a Metric. null for the main Knowledge.
+	 * @param knowledge - Receives the Knowledge mean and variation after each Problem. */
+	private static void computeKnowledge(Sequence sequence, double[] scores, double[][] main, KTParameters parameters, long seed, double[][] knowledge)
+	{
+		KnowledgeEngine.Workspace workspace = KnowledgeEngine.workspace();
+		workspace.random.reset(RandomSource.derive(seed, RandomSource.hash(sequence.name)));
+		double mean = parameters.startKnowledge, variation = 0;
+		for (int p = 0; p < scores.length; ++p)
+		{
+			Sequence.engine.computeKnowledge(mean, variation, scores[p], parameters, workspace);
+			knowledge[0][p] = workspace.result[0];
+			knowledge[1][p] = workspace.result[1];
+
+			// The next Problem starts from the main Knowledge, for metrics too.
+			mean = main == null ? knowledge[0][p] : main[0][p];
+			variation = main == null ? knowledge[1][p] : main[1][p];
+		}
+	}
+
+	/** Answers the three rounds of a pass. */
+	private static void work(DataInputStream in, DataOutputStream out) throws IOException
+	{
+		Sequence.engine = KnowledgeEngine.forName(in.readUTF());
+		int validations = in.readInt();
+		long seed = in.readLong();
+		boolean metric = in.readBoolean();
+		Sequence[] sequences = new Sequence[in.readInt()];
+		int[] folds = new int[sequences.length];
+		double[][] scores = new double[sequences.length][];
+		double[][][] main = new double[sequences.length][][];
+		for (int s = 0; s < sequences.length; ++s)
+		{
+			sequences[s] = new Sequence(in.readUTF());
+			folds[s] = in.readInt();
+			int size = in.readInt();
+			sequences[s].correct = new boolean[size];
+			scores[s] = new double[size];
+			for (int p = 0; p < size; ++p)
+			{
+				sequences[s].correct[p] = in.readBoolean();
+				scores[s][p] = in.readDouble();
+			}
+			if (metric)
+			{
+				main[s] = new double[2][size];
+				for (int p = 0; p < size; ++p)
+				{
+					main[s][0][p] = in.readDouble();
+					main[s][1][p] = in.readDouble();
+				}
+			}
+			sequences[s].findKnowledgeSequence();
+		}
+
+		// 1) First Knowledge of each fold
+		double[] first = new double[validations];
+		int[] count = new int[validations];
+		for (int s = 0; s < sequences.length; ++s)
+		{
+			first[folds[s]] += sequences[s].knowledgeSequence[0];
+			++count[folds[s]];
+		}
+		for (int f = 0; f < validations; ++f)
+		{
+			out.writeDouble(first[f]);
+			out.writeInt(count[f]);
+		}
+		out.flush();
+
+		// 2) Statistics of the learning set of each step
+		double[] kStart = new double[validations];
+		for (int step = 0; step < validations; ++step)
+			kStart[step] = in.readDouble();
+		for (int step = 0; step < validations; ++step)
+		{
+			FoldStatistics statistics = new FoldStatistics();
+			for (int s = 0; s < sequences.length; ++s)
+				if (folds[s] != step) statistics.add(sequences[s].computeProbabilities(kStart[step]), new RandomSource(RandomSource.derive(seed, step,
+						RandomSource.hash(sequences[s].name))));
+			statistics.write(out);
+		}
+		out.flush();
+
+		// 3) Knowledge of each Sequence, with the parameters of the step testing it
+		// All of it is computed before answering, so that workers don't wait for the coordinator to read the answers of the others.
+		KTParameters[] parameters = Model.readParameters(in, validations);
+		double[][][] knowledge = new double[sequences.length][][];
+		for (int s = 0; s < sequences.length; ++s)
+		{
+			knowledge[s] = new double[2][scores[s].length];
+			computeKnowledge(sequences[s], scores[s], main[s], parameters[folds[s]], seed, knowledge[s]);
+		}
+		for (int s = 0; s < sequences.length; ++s)
+			for (int p = 0; p < scores[s].length; ++p)
+			{
+				out.writeDouble(knowledge[s][0][p]);
+				out.writeDouble(knowledge[s][1][p]);
+			}
+		out.flush();
+	}
+
+	/** Executes every step of cross validation on the workers, see {@link FoldExecutor#execute(Metric, long)}.
+	 *
+	 * @param metric - The Metric to compute Knowledge for, null for the main Knowledge.
+	 * @param seed - The seed of the pass.
+	 * @return The parameters found for each step. Has two extra slots for {@link Main#computeStats(KTParameters[])}. */
+	public KTParameters[] execute(Metric metric, long seed)
+	{
+		// The Sequences of each worker, in cross validation order.
+		List<List<Integer>> shards = new ArrayList<List<Integer>>(this.shards);
+		for (int w = 0; w < this.shards; ++w)
+			shards.add(new ArrayList<Integer>());
+		for (int s = 0; s < this.sequences.size(); ++s)
+			shards.get((int) Math.floorMod(RandomSource.hash(this.sequences.get(s).name), (long) this.shards)).add(s);
+
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.addAll(Arrays.asList(Main.settings.getProperty("shard_options", "").trim().split("\\s+")));
+		command.remove("");
+		command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), ShardExecutor.class.getName()));
+
+		Process[] processes = new Process[this.shards];
+		DataInputStream[] in = new DataInputStream[this.shards];
+		DataOutputStream[] out = new DataOutputStream[this.shards];
+		int w = 0;
+		try
+		{
+			for (w = 0; w < processes.length; ++w)
+			{
+				processes[w] = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+				in[w] = new DataInputStream(new BufferedInputStream(processes[w].getInputStream()));
+				out[w] = new DataOutputStream(new BufferedOutputStream(processes[w].getOutputStream()));
+			}
+
+			for (w = 0; w < processes.length; ++w)
+			{
+				out[w].writeUTF(Main.settings.getProperty("knowledge_engine", "sampling"));
+				out[w].writeInt(this.validations);
+				out[w].writeLong(seed);
+				out[w].writeBoolean(metric != null);
+				out[w].writeInt(shards.get(w).size());
+				for (int s : shards.get(w))
+				{
+					Sequence sequence = this.sequences.get(s);
+					double[] scores = metric == null ? null : sequence.store.scores[metric.index];
+					out[w].writeUTF(sequence.name);
+					out[w].writeInt(s / this.testingSize);
+					out[w].writeInt(sequence.problems.size());
+					for (int p = 0; p < sequence.problems.size(); ++p)
+					{
+						out[w].writeBoolean(sequence.correct[p]);
+						out[w].writeDouble(metric == null ? sequence.problems.get(p).score : scores[sequence.problems.get(p).ordinal]);
+					}
+					if (metric != null) for (Problem problem : sequence.problems)
+					{
+						out[w].writeDouble(problem.knowledgeMean);
+						out[w].writeDouble(problem.knowledgeVariation);
+					}
+				}
+				out[w].flush();
+			}
+
+			// P(L0) of each step: the first Knowledge of the other folds.
+			double[] first = new double[this.validations], kStart = new double[this.validations];
+			int[] count = new int[this.validations];
+			int total = 0;
+			for (w = 0; w < processes.length; ++w)
+				for (int f = 0; f < this.validations; ++f)
+				{
+					first[f] += in[w].readDouble();
+					count[f] += in[w].readInt();
+				}
+			for (int f = 0; f < this.validations; ++f)
+				total += count[f];
+			for (int step = 0; step < this.validations; ++step)
+			{
+				for (int f = 0; f < this.validations; ++f)
+					if (f != step) kStart[step] += first[f];
+				kStart[step] /= total - count[step];
+			}
+			for (w = 0; w < processes.length; ++w)
+			{
+				for (double k : kStart)
+					out[w].writeDouble(k);
+				out[w].flush();
+			}
+
+			KTParameters[] params = new KTParameters[this.validations + 2];
+			FoldStatistics[] statistics = new FoldStatistics[this.validations];
+			for (int step = 0; step < this.validations; ++step)
+				statistics[step] = new FoldStatistics();
+			for (w = 0; w < processes.length; ++w)
+				for (int step = 0; step < this.validations; ++step)
+					statistics[step].merge(FoldStatistics.read(in[w]));
+			for (int step = 0; step < this.validations; ++step)
+				params[step] = statistics[step].parameters(kStart[step]);
+			for (w = 0; w < processes.length; ++w)
+			{
+				Model.writeParameters(out[w], Arrays.copyOf(params, this.validations));
+				out[w].close();
+			}
+
+			double[][] knowledge = new double[this.sequences.size()][];
+			for (w = 0; w < processes.length; ++w)
+			{
+				for (int s : shards.get(w))
+				{
+					knowledge[s] = new double[2 * this.sequences.get(s).problems.size()];
+					for (int i = 0; i < knowledge[s].length; ++i)
+						knowledge[s][i] = in[w].readDouble();
+					Telemetry.count(Telemetry.PROBLEMS, this.sequences.get(s).problems.size());
+				}
+				if (processes[w].waitFor() != 0) throw new IOException("exit code " + processes[w].exitValue());
+			}
+
+			// In cross validation order, whatever the number of workers: Sequences can share Problems, see ExplorationSplitter#init().
+			for (int s = 0; s < knowledge.length; ++s)
+			{
+				Sequence sequence = this.sequences.get(s);
+				for (int p = 0; p < sequence.problems.size(); ++p)
+				{
+					Problem problem = sequence.problems.get(p);
+					if (metric == null)
+					{
+						problem.knowledgeMean = knowledge[s][2 * p];
+						problem.knowledgeVariation = knowledge[s][2 * p + 1];
+					} else
+					{
+						sequence.store.knowledgeMean[metric.index][problem.ordinal] = knowledge[s][2 * p];
+						sequence.store.knowledgeVariation[metric.index][problem.ordinal] = knowledge[s][2 * p + 1];
+					}
+				}
+			}
+			return params;
+		} catch (IOException e)
+		{
+			throw new UncheckedIOException("Shard worker " + w + " failed: " + e.getMessage(), e);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for shard worker " + w, e);
+		} finally
+		{
+			for (Process process : processes)
+				if (process != null) process.destroy();
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package ckt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/** A set of named tasks with dependencies. Each task starts as soon as all the tasks it depends on are done, so independent tasks run at the same time. */
+public class TaskGraph
+{
+
+	/** The futures of each task, in the order they were added. */
+	private final LinkedHashMap<String, CompletableFuture<Void>> tasks;
+
+	public TaskGraph()
+	{
+		this.tasks = new LinkedHashMap<String, CompletableFuture<Void>>();
+	}
+
+	/** Adds a task to this graph. It is scheduled immediately if its dependencies are done.
+	 *
+	 * @param name - The name of the task.
+	 * @param task - The task to execute.
+	 * @param executor - The executor to execute the task on.
+	 * @param dependencies - The names of the tasks to wait for. They must have been added before. */
+	public void add(final String name, final Runnable task, Executor executor, String... dependencies)
+	{
+		if (this.tasks.containsKey(name)) throw new IllegalArgumentException("Duplicate task: " + name);
+		ArrayList<CompletableFuture<Void>> required = new ArrayList<CompletableFuture<Void>>();
+		for (String dependency : dependencies)
+		{
+			if (!this.tasks.containsKey(dependency)) throw new IllegalArgumentException("Unknown dependency for " + name + ": " + dependency);
+			required.add(this.tasks.get(dependency));
+		}
+
+		// Each task is a stage of the Telemetry.
+		this.tasks.put(name, CompletableFuture.allOf(required.toArray(new CompletableFuture<?>[required.size()])).thenRunAsync(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Telemetry.Timer timer = Telemetry.start(name);
+				try
+				{
+					task.run();
+				} finally
+				{
+					timer.stop();
+				}
+			}
+		}, executor));
+	}
+
+	/** Waits for all tasks to be done. If a task failed, throws its exception; the tasks depending on it are not executed. */
+	public void await()
+	{
+		try
+		{
+			CompletableFuture.allOf(this.tasks.values().toArray(new CompletableFuture<?>[this.tasks.size()])).join();
+		} catch (CompletionException e)
+		{
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw e;
+		}
+	}
+
+}
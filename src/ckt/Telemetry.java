@@ -0,0 +1,319 @@
+package ckt;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/** Where a run spends its time: stages timed in wall and CPU time, and counters of the work done. The CPU time of a stage is the CPU time of the whole
+ * process while it ran, so stages running at the same time share it. Counters are {@link LongAdder}s, so that the threads of {@link Main#pool} add to them
+ * without contention.<br />
+ * Everything is readable during the run through the MBean "ckt:type=Telemetry", and stages and progress are recorded as JFR events, see
+ * {@link TelemetryEvents}. {@link Telemetry#report(File)} writes it all as JSON at the end. */
+public class Telemetry
+{
+	/** The MBean of the Telemetry: an attribute per counter, per stage time, and the progress. */
+	private static class Bean implements DynamicMBean
+	{
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException
+		{
+			Object value = attributes().get(attribute);
+			if (value == null) throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes)
+		{
+			LinkedHashMap<String, Object> values = attributes();
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes)
+				if (values.containsKey(attribute)) list.add(new Attribute(attribute, values.get(attribute)));
+			return list;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo()
+		{
+			ArrayList<MBeanAttributeInfo> info = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String, Object> attribute : attributes().entrySet())
+				info.add(new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().getClass().getName(), attribute.getKey(), true, false, false));
+			return new MBeanInfo(Telemetry.class.getName(), "Stages and counters of the run", info.toArray(new MBeanAttributeInfo[info.size()]), null, null,
+					null);
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+		{
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+		{
+			throw new AttributeNotFoundException("Read only: " + attribute.getName());
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes)
+		{
+			return new AttributeList();
+		}
+	}
+
+	/** A stage of the run. Its times add up over all the times it ran. */
+	static class Stage
+	{
+		/** The number of times this stage ran. */
+		long count;
+		/** CPU time of the process and wall time spent in this stage, in nanoseconds. */
+		long cpu, wall;
+		/** The name of this stage. */
+		final String name;
+
+		Stage(String name)
+		{
+			this.name = name;
+		}
+	}
+
+	/** Times a stage, from {@link Telemetry#start(String)} to {@link Timer#stop()}. */
+	public static class Timer
+	{
+		/** CPU time and wall time when the stage started, in nanoseconds. */
+		private final long cpu, wall;
+		/** The JFR event of the stage. */
+		private final TelemetryEvents.StageEvent event;
+		/** The stage timed. */
+		private final String name;
+		/** The stage the thread ran before this one, see {@link Log#setStage(String)}. */
+		private final String previous;
+
+		private Timer(String name)
+		{
+			this.name = name;
+			this.previous = Log.setStage(name);
+			this.event = TelemetryEvents.beginStage(name);
+			this.cpu = cpuTime();
+			this.wall = System.nanoTime();
+		}
+
+		/** Adds the time since the start to the stage. */
+		public void stop()
+		{
+			long wall = System.nanoTime() - this.wall, cpu = cpuTime() - this.cpu;
+			TelemetryEvents.commitStage(this.event, cpu);
+			Log.setStage(this.previous);
+			synchronized (stages)
+			{
+				Stage stage = stages.get(this.name);
+				if (stage == null) stages.put(this.name, stage = new Stage(this.name));
+				++stage.count;
+				stage.wall += wall;
+				stage.cpu += cpu;
+			}
+		}
+	}
+
+	public static final byte PROBLEMS = 0, DRAWS = 1, ZONE_MERGES = 2, SCRIPT_EVALUATIONS = 3, BYTES_WRITTEN = 4;
+	/** The name of each counter. */
+	static final String[] COUNTERS = new String[]
+	{ "problems", "draws", "zone_merges", "script_evaluations", "bytes_written" };
+
+	/** The value of each counter. */
+	private static final LongAdder[] counters = new LongAdder[COUNTERS.length];
+	/** The number of Problems expected when the progress started, 0 if there is no progress to follow. */
+	private static volatile long expected;
+	/** The CPU time of the process, if the JVM gives it. */
+	private static final OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+	/** Logs the progress, null if it isn't logged. */
+	private static ScheduledExecutorService progress;
+	/** The number of Problems and the time when the progress started, in nanoseconds. */
+	private static volatile long progressProblems, progressStart;
+	/** The stages by name, in the order they first ran. */
+	private static final LinkedHashMap<String, Stage> stages = new LinkedHashMap<String, Stage>();
+	/** CPU time and wall time when the run started, in nanoseconds. */
+	private static long startCpu, startWall = System.nanoTime();
+
+	static
+	{
+		for (int c = 0; c < counters.length; ++c)
+			counters[c] = new LongAdder();
+	}
+
+	/** @return The values of the MBean attributes. */
+	private static LinkedHashMap<String, Object> attributes()
+	{
+		LinkedHashMap<String, Object> attributes = new LinkedHashMap<String, Object>();
+		for (int c = 0; c < COUNTERS.length; ++c)
+			attributes.put(COUNTERS[c], counters[c].sum());
+		attributes.put("elapsed_ms", (System.nanoTime() - startWall) / 1000000);
+		attributes.put("progress", progress());
+		attributes.put("eta_s", eta());
+		synchronized (stages)
+		{
+			for (Stage stage : stages.values())
+			{
+				attributes.put(stage.name + ".wall_ms", stage.wall / 1000000);
+				attributes.put(stage.name + ".cpu_ms", stage.cpu / 1000000);
+			}
+		}
+		return attributes;
+	}
+
+	/** Resets the Telemetry and registers its MBean, if it isn't already. Called when the run starts. */
+	public static void begin()
+	{
+		synchronized (stages)
+		{
+			stages.clear();
+		}
+		for (LongAdder counter : counters)
+			counter.reset();
+		expected = 0;
+		startCpu = cpuTime();
+		startWall = System.nanoTime();
+
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("ckt:type=Telemetry");
+			if (!server.isRegistered(name)) server.registerMBean(new Bean(), name);
+		} catch (JMException | SecurityException e)
+		{
+			Main.log(Log.WARNING, "Couldn't register the Telemetry MBean: " + e.getMessage());
+		}
+	}
+
+	/** Adds to the input counter. */
+	public static void count(byte counter, long value)
+	{
+		counters[counter].add(value);
+	}
+
+	/** @return The CPU time of the process in nanoseconds, 0 if the JVM doesn't give it. */
+	private static long cpuTime()
+	{
+		if (system instanceof com.sun.management.OperatingSystemMXBean) return ((com.sun.management.OperatingSystemMXBean) system).getProcessCpuTime();
+		return 0;
+	}
+
+	/** @return The estimated seconds until the expected Problems are done, -1 if unknown. */
+	static long eta()
+	{
+		double progress = progress();
+		if (progress <= 0 || progress >= 1) return -1;
+		return (long) ((System.nanoTime() - progressStart) / 1e9 * (1 - progress) / progress);
+	}
+
+	/** Sets the number of Problems expected to go through Knowledge Tracing from now on, for the progress. */
+	public static void expect(long problems)
+	{
+		progressProblems = counters[PROBLEMS].sum();
+		progressStart = System.nanoTime();
+		expected = problems;
+	}
+
+	/** @return The part of the expected Problems done, between 0 and 1. 0 if none are expected. */
+	static double progress()
+	{
+		long expected = Telemetry.expected;
+		if (expected == 0) return 0;
+		return Math.min(1, (counters[PROBLEMS].sum() - progressProblems) * 1. / expected);
+	}
+
+	/** Writes the stages, counters and rates of the run to the input file, as JSON. */
+	public static void report(File output) throws IOException
+	{
+		long wall = System.nanoTime() - startWall, cpu = cpuTime() - startCpu;
+		Writer writer = new FileWriter(output);
+		try
+		{
+			writer.write("{\n\t\"wall_ms\": " + wall / 1000000 + ",\n\t\"cpu_ms\": " + cpu / 1000000 + ",\n\t\"stages\": [");
+			synchronized (stages)
+			{
+				String separator = "\n";
+				for (Stage stage : stages.values())
+				{
+					writer.write(separator + "\t\t{ \"name\": \"" + stage.name.replace("\\", "\\\\").replace("\"", "\\\"") + "\", \"count\": " + stage.count
+							+ ", \"wall_ms\": " + stage.wall / 1000000 + ", \"cpu_ms\": " + stage.cpu / 1000000 + " }");
+					separator = ",\n";
+				}
+			}
+			writer.write("\n\t],\n\t\"counters\": {");
+			for (int c = 0; c < COUNTERS.length; ++c)
+				writer.write((c == 0 ? "\n" : ",\n") + "\t\t\"" + COUNTERS[c] + "\": " + counters[c].sum());
+			double seconds = Math.max(wall, 1) / 1e9;
+			writer.write("\n\t},\n\t\"rates\": {\n\t\t\"problems_per_second\": " + String.format(Locale.ROOT, "%.1f", counters[PROBLEMS].sum() / seconds)
+					+ ",\n\t\t\"draws_per_second\": " + String.format(Locale.ROOT, "%.1f", counters[DRAWS].sum() / seconds) + "\n\t}\n}\n");
+		} finally
+		{
+			writer.close();
+		}
+	}
+
+	/** Starts timing a stage. */
+	public static Timer start(String stage)
+	{
+		return new Timer(stage);
+	}
+
+	/** Logs the progress of Knowledge Tracing every <code>seconds</code>, while Problems are expected, see {@link Telemetry#expect(long)}. */
+	public static void startProgress(long seconds)
+	{
+		progress = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "progress");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		progress.scheduleAtFixedRate(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				double progress = progress();
+				if (progress <= 0 || progress >= 1) return;
+				long done = counters[PROBLEMS].sum() - progressProblems, eta = eta();
+				double rate = done / ((System.nanoTime() - progressStart) / 1e9);
+				Main.log(String.format(Locale.ROOT, "Progress: %.1f%%, %.0f problems/s, ETA %dm%02ds", progress * 100, rate, eta / 60, eta % 60));
+				TelemetryEvents.progress(progress, done, rate, eta);
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	/** Stops logging the progress. */
+	public static void stopProgress()
+	{
+		if (progress != null) progress.shutdownNow();
+		progress = null;
+	}
+
+}
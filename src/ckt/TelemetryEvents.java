@@ -0,0 +1,77 @@
+package ckt;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.Timespan;
+
+/** The JFR events of {@link Telemetry}. They are recorded when a flight recording is running, and cost little otherwise. */
+public class TelemetryEvents
+{
+	/** The progress of Knowledge Tracing, see {@link Telemetry#expect(long)}. */
+	@Name("ckt.Progress")
+	@Label("Progress")
+	@Category("CKT")
+	static class ProgressEvent extends Event
+	{
+		@Label("Progress")
+		@Percentage
+		double progress;
+		@Label("Problems")
+		long problems;
+		@Label("Problems per Second")
+		double rate;
+		@Label("ETA")
+		@Timespan(Timespan.SECONDS)
+		long eta;
+	}
+
+	/** A stage of the run, see {@link Telemetry#start(String)}. Its duration is the wall time of the stage. */
+	@Name("ckt.Stage")
+	@Label("Stage")
+	@Category("CKT")
+	static class StageEvent extends Event
+	{
+		@Label("Name")
+		String name;
+		@Label("Process CPU Time")
+		@Timespan
+		long cpu;
+	}
+
+	/** @return The event of the input stage, started. */
+	static StageEvent beginStage(String name)
+	{
+		StageEvent event = new StageEvent();
+		event.name = name;
+		event.begin();
+		return event;
+	}
+
+	/** Commits the input stage event, created by {@link TelemetryEvents#beginStage(String)}.
+	 *
+	 * @param cpu - The CPU time of the stage, in nanoseconds. */
+	static void commitStage(StageEvent event, long cpu)
+	{
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.cpu = cpu;
+			event.commit();
+		}
+	}
+
+	/** Commits a progress event. */
+	static void progress(double progress, long problems, double rate, long eta)
+	{
+		ProgressEvent event = new ProgressEvent();
+		event.progress = progress;
+		event.problems = problems;
+		event.rate = rate;
+		event.eta = eta;
+		event.commit();
+	}
+
+}
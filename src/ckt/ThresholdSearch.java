@@ -0,0 +1,277 @@
+package ckt;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import ckt.KTParameters.Gaussian;
+
+/** Chooses the threshold of a Metric among candidate thresholds, by the RMSE of its Knowledge with cross validation. Candidates are tested from the lowest:
+ * Problems are sorted by score once, so moving to the next candidate only changes the correctness of the Problems crossing it. Only the Sequences containing
+ * them find their Knowledge Sequence again, and update the {@link FoldStatistics} of the learning set of each step. P(T) of a Sequence depends on P(L0)
+ * of the learning set, so it is summed again for each step, from the terms kept for each Sequence.<br />
+ * The RMSE only uses the representative Problems, see {@link Problem#isRepresentative}. The metric Knowledge after a Problem only depends on the main
+ * Knowledge before it, see {@link Sequence#computeKnowledge(KTParameters, Metric, long)}, so it is computed for those Problems only. The main Knowledge and
+ * the representative Problems must be found.<br />
+ * The RMSE estimates the one of the metric pass with the same threshold and seed. P(G) and P(S) are drawn for each Sequence as in {@link ShardExecutor},
+ * so the parameters are those of a sharded pass, apart from rounding. Each Sequence draws its Knowledge from a source seeded as in
+ * {@link Sequence#computeKnowledge(KTParameters, Metric, long)}, but the Problems before the representative ones don't draw anything, so the values
+ * differ from those of the pass. */
+public class ThresholdSearch
+{
+	/** The Problems of all Sequences by score: sequence[i] and position[i] locate the Problem of rank i. */
+	private final int[] sequence, position;
+	/** The threshold of the Expected Knowledge, -1 if it isn't binary. */
+	private final double expectedThreshold;
+	/** The number of Sequences tested by each step. */
+	private final int[] counts;
+	/** first[s]: Knowledge after the first Problem of the Sequence s. The others are the sums of P(T) in {@link Sequence#computeProbabilities(double)},
+	 * without the first Problem, whose terms depend on P(L0). */
+	private final double[] first, tNumerator, tDenominator;
+	/** The sum of {@link ThresholdSearch#first} over the Sequences tested by each step. */
+	private final double[] firsts;
+	/** P(G) and P(S) of each Sequence, see {@link Sequence#computeProbabilities(double)}. */
+	private final Gaussian[] guess, slip;
+	/** The Metric whose threshold is searched. */
+	public final Metric metric;
+	/** Draws P(G) and P(S) of the Sequences. */
+	private final RandomSource random = new RandomSource(0);
+	/** The score of the Problem of each rank. */
+	private final double[] scores;
+	/** The seed of the search. */
+	private long seed;
+	/** The statistics of the learning set of each step, but P(T). */
+	private final FoldStatistics[] statistics;
+	/** The number of Sequences to use as testing set for each step. */
+	public final int testingSize;
+	/** The number of steps in cross validation. */
+	public final int validations;
+	/** Views of the Sequences with the correctness of the current candidate, see {@link Sequence#view(Metric)}. */
+	private final Sequence[] views;
+
+	/** @param sequences - The Sequences, in the order of cross validation.
+	 * @param expectedThreshold - The threshold of the Expected Knowledge, -1 if it isn't binary. */
+	public ThresholdSearch(List<Sequence> sequences, Metric metric, int validations, int testingSize, double expectedThreshold)
+	{
+		this.metric = metric;
+		this.validations = validations;
+		this.testingSize = testingSize;
+		this.expectedThreshold = expectedThreshold;
+		this.views = new Sequence[sequences.size()];
+		this.first = new double[this.views.length];
+		this.tNumerator = new double[this.views.length];
+		this.tDenominator = new double[this.views.length];
+		this.guess = new Gaussian[this.views.length];
+		this.slip = new Gaussian[this.views.length];
+		this.counts = new int[validations];
+		this.firsts = new double[validations];
+		this.statistics = new FoldStatistics[validations];
+
+		int problems = 0;
+		for (int s = 0; s < this.views.length; ++s)
+		{
+			this.views[s] = sequences.get(s).view(metric);
+			problems += this.views[s].problems.size();
+			++this.counts[s / testingSize];
+		}
+
+		// Sequences can share Problems, see ExplorationSplitter#init(): ranks are positions in Sequences, not Problems.
+		final double[] scores = new double[problems];
+		int[] sequence = new int[problems], position = new int[problems];
+		Integer[] ranks = new Integer[problems];
+		for (int s = 0, i = 0; s < this.views.length; ++s)
+			for (int p = 0; p < this.views[s].problems.size(); ++p, ++i)
+			{
+				scores[i] = this.views[s].store.scores[metric.index][this.views[s].problems.get(p).ordinal];
+				sequence[i] = s;
+				position[i] = p;
+				ranks[i] = i;
+			}
+		Arrays.sort(ranks, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer o1, Integer o2)
+			{
+				return Double.compare(scores[o1], scores[o2]);
+			}
+		});
+
+		this.scores = new double[problems];
+		this.sequence = new int[problems];
+		this.position = new int[problems];
+		for (int i = 0; i < problems; ++i)
+		{
+			this.scores[i] = scores[ranks[i]];
+			this.sequence[i] = sequence[ranks[i]];
+			this.position[i] = position[ranks[i]];
+		}
+	}
+
+	/** @return <code>count</code> candidate thresholds, ascending: the scores at regular ranks, without duplicates. */
+	public double[] candidates(int count)
+	{
+		int valid = this.scores.length;
+		while (valid > 0 && Double.isNaN(this.scores[valid - 1]))
+			--valid;
+		double[] candidates = new double[Math.min(count, valid)];
+		int size = 0;
+		for (int c = 0; c < candidates.length; ++c)
+		{
+			double candidate = this.scores[(int) ((long) c * valid / candidates.length)];
+			if (size == 0 || candidate != candidates[size - 1]) candidates[size++] = candidate;
+		}
+		return Arrays.copyOf(candidates, size);
+	}
+
+	/** Computes the RMSE of the Knowledge with each candidate threshold. Changes the correctness of the views only, not the threshold of the Metric.
+	 *
+	 * @param candidates - The thresholds to test, ascending.
+	 * @param seed - The seed of the metric pass. Each Sequence derives its random sources from it as in the pass.
+	 * @return The RMSE with each candidate. */
+	public double[] evaluate(double[] candidates, long seed)
+	{
+		this.seed = seed;
+		Arrays.fill(this.firsts, 0);
+		Arrays.fill(this.first, 0);
+		Arrays.fill(this.guess, null);
+		for (int step = 0; step < this.validations; ++step)
+			this.statistics[step] = new FoldStatistics();
+		// Below every score: the Problems with a score are all valid, or none if the threshold is reversed.
+		for (Sequence view : this.views)
+			for (int p = 0; p < view.correct.length; ++p)
+				view.correct[p] = !this.metric.thresholdReversed && !Double.isNaN(view.store.scores[this.metric.index][view.problems.get(p).ordinal]);
+		boolean[] dirty = new boolean[this.views.length];
+		int[] changed = new int[this.views.length];
+		for (int s = 0; s < this.views.length; ++s)
+			this.update(s);
+
+		double[] rmse = new double[candidates.length];
+		int rank = 0;
+		for (int c = 0; c < candidates.length; ++c)
+		{
+			int count = 0;
+			for (; rank < this.scores.length && this.scores[rank] < candidates[c]; ++rank)
+			{
+				int s = this.sequence[rank];
+				this.views[s].correct[this.position[rank]] = this.metric.thresholdReversed;
+				if (!dirty[s]) changed[count++] = s;
+				dirty[s] = true;
+			}
+			for (int i = 0; i < count; ++i)
+			{
+				this.update(changed[i]);
+				dirty[changed[i]] = false;
+			}
+			rmse[c] = this.rmse();
+		}
+		return rmse;
+	}
+
+	/** @return The parameters found with the Sequences outside of the testing set of the input step, as {@link ShardExecutor} does. */
+	private KTParameters parameters(int step)
+	{
+		double kStart = 0;
+		int count = 0;
+		for (int f = 0; f < this.validations; ++f)
+			if (f != step)
+			{
+				kStart += this.firsts[f];
+				count += this.counts[f];
+			}
+		kStart /= count;
+
+		double transition = 0;
+		int transitions = 0;
+		for (int s = 0; s < this.views.length; ++s)
+			if (s / this.testingSize != step)
+			{
+				double t = (this.tNumerator[s] + (1 - kStart) * this.first[s]) / (this.tDenominator[s] + 1 - kStart);
+				if (!Double.isNaN(t))
+				{
+					transition += t;
+					++transitions;
+				}
+			}
+		this.statistics[step].transition = transition;
+		this.statistics[step].transitions = transitions;
+		return this.statistics[step].parameters(kStart);
+	}
+
+	/** @return The RMSE of the metric Knowledge of the representative Problems, each Sequence using the parameters of the step testing it. Same formula as
+	 *         the Precision of {@link Main}. */
+	private double rmse()
+	{
+		KnowledgeEngine.Workspace workspace = KnowledgeEngine.workspace();
+		double[] scores = this.views.length == 0 ? null : this.views[0].store.scores[this.metric.index];
+		double rmse = 0;
+		for (int step = 0; step < this.validations; ++step)
+		{
+			KTParameters parameters = this.parameters(step);
+			for (int s = Math.min(step * this.testingSize, this.views.length); s < Math.min((step + 1) * this.testingSize, this.views.length); ++s)
+			{
+				Sequence view = this.views[s];
+				workspace.random.reset(RandomSource.derive(this.seed, RandomSource.hash(view.name)));
+				double expected = view.finalProblem().expectedKnowledge;
+				int problems = -1;
+				for (int p = 0; p < view.problems.size(); ++p)
+				{
+					Problem problem = view.problems.get(p);
+					if (!problem.isRepresentative) continue;
+					if (problems == -1) problems = view.problems.size() - p;
+
+					Problem previous = p == 0 ? null : view.problems.get(p - 1);
+					Sequence.engine.computeKnowledge(previous == null ? parameters.startKnowledge : previous.knowledgeMean, previous == null ? 0
+							: previous.knowledgeVariation, scores[problem.ordinal], parameters, workspace);
+					double knowledge = this.expectedThreshold == -1 ? workspace.result[0] : workspace.result[0] >= this.expectedThreshold ? 1 : 0;
+					rmse += Math.pow(expected - knowledge, 2) / problems;
+				}
+			}
+		}
+		return Math.sqrt(rmse / this.views.length);
+	}
+
+	/** Finds the Knowledge Sequence of the Sequence of index <code>s</code> with its current correctness, and updates its statistics. */
+	private void update(int s)
+	{
+		Sequence view = this.views[s];
+		view.findKnowledgeSequence();
+		double[] k = view.knowledgeSequence;
+		double tNumerator = 0, tDenominator = 0, gNumerator = 0, gDenominator = 0, sNumerator = 0, sDenominator = 0;
+		for (int i = 0; i < k.length; ++i)
+		{
+			if (i != 0)
+			{
+				tNumerator += (1 - k[i - 1]) * k[i];
+				tDenominator += 1 - k[i - 1];
+			}
+			gNumerator += (view.correct[i] ? 1 : 0) * (1 - k[i]);
+			gDenominator += 1 - k[i];
+			sNumerator += (view.correct[i] ? 0 : 1) * k[i];
+			sDenominator += k[i];
+		}
+		int fold = s / this.testingSize;
+		this.firsts[fold] += k[0] - this.first[s];
+		this.first[s] = k[0];
+		this.tNumerator[s] = tNumerator;
+		this.tDenominator[s] = tDenominator;
+
+		// The previous P(G) and P(S) are drawn again from the same source to be removed.
+		Gaussian guess = new Gaussian(gNumerator / gDenominator), slip = new Gaussian(sNumerator / sDenominator);
+		long hash = RandomSource.hash(view.name);
+		for (int step = 0; step < this.validations; ++step)
+			if (step != fold)
+			{
+				long seed = RandomSource.derive(this.seed, step, hash);
+				if (this.guess[s] != null)
+				{
+					this.random.reset(seed);
+					this.statistics[step].add(this.guess[s], this.slip[s], this.random, -1);
+				}
+				this.random.reset(seed);
+				this.statistics[step].add(guess, slip, this.random, 1);
+			}
+		this.guess[s] = guess;
+		this.slip[s] = slip;
+	}
+
+}
@@ -7,6 +7,18 @@ import ckt.KTParameters.Gaussian;
 
 public class Utils
 {
+	/** Format of {@link Utils#toString(double)}, for the values {@link Utils#format(double, StringBuilder)} can't write directly. One per thread, as
+	 * DecimalFormat isn't thread safe. */
+	private static final ThreadLocal<DecimalFormat> decimalFormat = new ThreadLocal<DecimalFormat>()
+	{
+		@Override
+		protected DecimalFormat initialValue()
+		{
+			return new DecimalFormat("#.##########");
+		}
+	};
+	/** 10^10: values are written with at most 10 decimals. */
+	private static final long SCALE = 10000000000L;
 
 	/** Displays a double with max size of 6. */
 	public static String display(double d)
@@ -18,29 +30,68 @@ public class Utils
 		return s;
 	}
 
-	/** Estimates a Gaussian distribution from the input experimental values. */
-	public static Gaussian makeGaussian(double[] values)
+	/** Appends the input value as {@link Utils#toString(double)} writes it, without allocating for usual values: they are scaled to a number of 10^-10,
+	 * and only values close to a rounding tie, large values and non finite values go through DecimalFormat. */
+	public static void format(double d, StringBuilder builder)
 	{
-		double mean = 0;
-		int size = 0;
-		for (int i = 0; i < values.length; ++i)
-			if (!Double.isNaN(values[i]))
+		double scaled = Math.abs(d) * SCALE;
+		if (scaled < 1e15)
+		{
+			// The integer part is exact, and the exact scaled value is within an ulp of the computed one.
+			long units = (long) scaled;
+			double fraction = scaled - units;
+			if (Math.abs(fraction - 0.5) > 2 * Math.ulp(scaled))
 			{
-				mean += values[i];
-				++size;
+				if (fraction > 0.5) ++units;
+				if (d < 0 || d == 0 && 1 / d < 0) builder.append('-');
+				builder.append(units / SCALE);
+				long decimals = units % SCALE;
+				if (decimals != 0)
+				{
+					int digits = 10;
+					while (decimals % 10 == 0)
+					{
+						decimals /= 10;
+						--digits;
+					}
+					builder.append('.');
+					for (long power = pow10(digits - 1); power > decimals; power /= 10)
+						builder.append('0');
+					builder.append(decimals);
+				}
+				return;
 			}
-		mean /= size;
+		}
+		builder.append(decimalFormat.get().format(d).replace(',', '.'));
+	}
 
-		double variation = 0;
-		for (int i = 0; i < values.length; ++i)
+	/** Estimates a Gaussian distribution from the input experimental values. */
+	public static Gaussian makeGaussian(double[] values)
+	{
+		double[] result = new double[2];
+		makeGaussian(values, values.length, result);
+		return new Gaussian(result[0], result[1]);
+	}
+
+	/** Estimates a Gaussian distribution from the first <code>length</code> input experimental values, in a single pass (Welford's method). NaN values are
+	 * ignored.
+	 * 
+	 * @param result - Receives the mean and variation. */
+	public static void makeGaussian(double[] values, int length, double[] result)
+	{
+		double mean = 0, squares = 0, delta;
+		int size = 0;
+		for (int i = 0; i < length; ++i)
 			if (!Double.isNaN(values[i]))
 			{
-				variation += Math.pow(values[i] - mean, 2);
 				++size;
+				delta = values[i] - mean;
+				mean += delta / size;
+				squares += delta * (values[i] - mean);
 			}
-		variation = Math.sqrt(variation / size);
 
-		return new Gaussian(mean, variation);
+		result[0] = size == 0 ? Double.NaN : mean;
+		result[1] = size == 0 ? Double.NaN : Math.sqrt(squares / size);
 	}
 
 	/** Estimates a Gaussian distribution from the input experimental values. */
@@ -52,6 +103,25 @@ public class Utils
 		return makeGaussian(convert);
 	}
 
+	/** @return P(X <= x) for X following the standard normal distribution. Approximation with fractional error below 1.2e-7. */
+	public static double normalCdf(double x)
+	{
+		double z = Math.abs(x) / Math.sqrt(2);
+		double t = 1 / (1 + 0.5 * z);
+		double erfc = t
+				* Math.exp(-z * z - 1.26551223 + t
+						* (1.00002368 + t
+								* (0.37409196 + t * (0.09678418 + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587 + t
+										* (-0.82215223 + t * 0.17087277)))))))));
+		return x >= 0 ? 1 - erfc / 2 : erfc / 2;
+	}
+
+	/** @return The density of the standard normal distribution at x. */
+	public static double normalPdf(double x)
+	{
+		return Math.exp(-x * x / 2) / Math.sqrt(2 * Math.PI);
+	}
+
 	/** Parses a Double. */
 	public static Double parseDouble(String input)
 	{
@@ -84,9 +154,21 @@ public class Utils
 		}
 	}
 
+	/** @return 10^<code>exponent</code>. */
+	private static long pow10(int exponent)
+	{
+		long power = 1;
+		for (int i = 0; i < exponent; ++i)
+			power *= 10;
+		return power;
+	}
+
+	/** @return The input value with at most 10 decimals, without trailing zeros. */
 	public static String toString(double d)
 	{
-		return (new DecimalFormat("#.##########").format(d)).replaceAll(",", ".");
+		StringBuilder builder = new StringBuilder(24);
+		format(d, builder);
+		return builder.toString();
 	}
 
 }
@@ -2,7 +2,8 @@ package ckt;
 
 import java.util.ArrayList;
 
-/** Represents a zone in a sequence. Used to split explorations in {@link ExplorationSplitter}. */
+/** Represents a zone in a sequence. Used to split explorations in {@link ExplorationSplitter}. Counts are cached and updated by merges, so testing a zone
+ * doesn't read its Problems. */
 public class Zone implements Comparable<Zone>
 {
 	public static final byte NO_MERGE = 0, MERGE_PREVIOUS = 1, MERGE_NEXT = 2;
@@ -31,8 +32,17 @@ public class Zone implements Comparable<Zone>
 		return count;
 	}
 
+	/** The number of correct Problems in this zone. */
+	private int correct;
+	/** The number of consecutive equal values at the start and at the end of this zone. */
+	private int startRun, endRun;
 	/** Maximum length to be potentially considered as noise. */
 	public final int maxNoise;
+	/** The neighbours of this zone while splitting, null at the ends of the Sequence. */
+	Zone previous, next;
+	/** The position of this zone among the zones of its Sequence when created. Zones keep their order, so it also orders zones starting at the same
+	 * index. */
+	int rank;
 	/** The Sequence this zone describes. */
 	public final Sequence sequence;
 	/** Start and end indexes of the zone. */
@@ -49,15 +59,16 @@ public class Zone implements Comparable<Zone>
 		this.maxNoise = maxNoise;
 		this.startIndex = startIndex;
 		this.endIndex = endIndex;
+		this.count();
 	}
 
 	/** Determines if this zone can merge with the previous or the next.
 	 * 
 	 * @return {@link Zone#NO_MERGE} if can't be merged.<br />
 	 *         {@link Zone#MERGE_PREVIOUS} or {@link Zone#MERGE_NEXT} if it can merge respectively with the previous or next zone. */
-	private byte canMerge(Zone previous, Zone next)
+	byte canMerge(Zone previous, Zone next)
 	{
-		int start = startOf(this), end = endOf(this);
+		int start = this.startRun, end = this.endRun;
 		boolean majority = this.majority();
 		if (start >= this.maxNoise && end >= this.maxNoise) return NO_MERGE;
 
@@ -74,6 +85,16 @@ public class Zone implements Comparable<Zone>
 		return NO_MERGE;
 	}
 
+	/** Computes the cached counts of this zone from its Problems. */
+	private void count()
+	{
+		this.correct = 0;
+		for (int problem = this.startIndex; problem <= this.endIndex; ++problem)
+			if (this.sequence.problems.get(problem).isCorrect) ++this.correct;
+		this.startRun = startOf(this);
+		this.endRun = endOf(this);
+	}
+
 	@Override
 	public int compareTo(Zone o)
 	{
@@ -111,11 +132,28 @@ public class Zone implements Comparable<Zone>
 	/** @return <code>true</code> if the majority of problems in this zone are correct. */
 	public boolean majority()
 	{
-		int focus = 0, not = 1;
-		for (int problem = this.startIndex; problem <= this.endIndex; ++problem)
-			if (this.sequence.problems.get(problem).isCorrect) ++focus;
-			else ++not;
-		return focus >= not;
+		return this.correct >= this.size() - this.correct + 1;
+	}
+
+	/** Makes this zone the union of <code>first</code> and <code>second</code>, which follows it. This zone is one of them. */
+	private void merge(Zone first, Zone second)
+	{
+		boolean linked = first.sequence.problems.get(first.endIndex).isCorrect == second.sequence.problems.get(second.startIndex).isCorrect;
+		int startRun = first.startRun == first.size() && linked ? first.size() + second.startRun : first.startRun;
+		int endRun = second.endRun == second.size() && linked ? second.size() + first.endRun : second.endRun;
+		int correct = first.correct + second.correct;
+		boolean overlap = first.endIndex >= second.startIndex;
+
+		this.startIndex = first.startIndex;
+		this.endIndex = second.endIndex;
+		// The first zones of a Sequence can overlap, see ExplorationSplitter#init()
+		if (overlap) this.count();
+		else
+		{
+			this.correct = correct;
+			this.startRun = startRun;
+			this.endRun = endRun;
+		}
 	}
 
 	/** @return {@link Zone#MERGE_PREVIOUS} or {@link Zone#MERGE_NEXT} if this FocusZone is considered as noise. If so, it will merge with the best neighbour. <br />
@@ -131,13 +169,13 @@ public class Zone implements Comparable<Zone>
 	/** Merges this zone with the <code>next</code>. */
 	public void mergeNext(Zone next)
 	{
-		this.endIndex = next.endIndex;
+		this.merge(this, next);
 	}
 
 	/** Merges this zone with the <code>previous</code>. */
 	public void mergePrevious(Zone previous)
 	{
-		this.startIndex = previous.startIndex;
+		this.merge(previous, this);
 	}
 
 	/** Merges with a neighbor if possible.
@@ -154,8 +192,7 @@ public class Zone implements Comparable<Zone>
 	/** @return The minimum number of consecutive identical values at the start or end of this zone. */
 	public int minExtremity()
 	{
-		int start = startOf(this), end = endOf(this);
-		return start < end ? start : end;
+		return this.startRun < this.endRun ? this.startRun : this.endRun;
 	}
 
 	/** @return The size of this zone. */